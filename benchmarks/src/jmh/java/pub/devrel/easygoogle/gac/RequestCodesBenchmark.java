@@ -0,0 +1,53 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gac;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request code masking done for every {@link GacFragment#startActivityForResult} and
+ * activity result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RequestCodesBenchmark {
+
+    private int mRequestCode = 9001;
+    private int mFragmentIndex = 3;
+
+    @Benchmark
+    public int mask() {
+        return RequestCodes.mask(mRequestCode, mFragmentIndex);
+    }
+
+    @Benchmark
+    public int roundTrip() {
+        return RequestCodes.unmask(RequestCodes.mask(mRequestCode, mFragmentIndex));
+    }
+
+    @Benchmark
+    public boolean isValid() {
+        return RequestCodes.isValid(mRequestCode);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gac;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Activity result routing in {@link GacFragment} with many enabled modules: a lookup in
+ * {@link ResultRoutes}, compared with offering the result to each module in turn as is done
+ * for modules that declare no request codes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResultRoutesBenchmark {
+
+    private static final int CODES_PER_MODULE = 2;
+
+    @Param({"4", "32", "256"})
+    public int modules;
+
+    private List<FakeModule> mModules;
+    private ResultRoutes<FakeModule> mRoutes;
+    private int[] mRequestCodes;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mModules = new ArrayList<>(modules);
+        for (int i = 0; i < modules; i++) {
+            mModules.add(new FakeModule(9000 + i * CODES_PER_MODULE, CODES_PER_MODULE));
+        }
+
+        mRoutes = buildRoutes();
+        mRequestCodes = new int[modules * CODES_PER_MODULE];
+        for (int i = 0; i < mRequestCodes.length; i++) {
+            mRequestCodes[i] = 9000 + i;
+        }
+    }
+
+    @Benchmark
+    public FakeModule routedLookup() {
+        return mRoutes.get(nextRequestCode());
+    }
+
+    @Benchmark
+    public FakeModule offerToEach() {
+        int requestCode = nextRequestCode();
+        for (FakeModule module : mModules) {
+            if (module.handleActivityResult(requestCode)) {
+                return module;
+            }
+        }
+
+        return null;
+    }
+
+    @Benchmark
+    public ResultRoutes<FakeModule> buildRoutes() {
+        ResultRoutes<FakeModule> routes = new ResultRoutes<>();
+        for (FakeModule module : mModules) {
+            routes.add(module, module.getRequestCodes());
+        }
+
+        return routes;
+    }
+
+    private int nextRequestCode() {
+        int requestCode = mRequestCodes[mNext];
+        mNext = (mNext + 1) % mRequestCodes.length;
+        return requestCode;
+    }
+
+    static class FakeModule {
+
+        private final Integer[] mRequestCodes;
+
+        FakeModule(int firstCode, int count) {
+            mRequestCodes = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                mRequestCodes[i] = firstCode + i;
+            }
+        }
+
+        List<Integer> getRequestCodes() {
+            return Arrays.asList(mRequestCodes);
+        }
+
+        boolean handleActivityResult(int requestCode) {
+            for (Integer code : mRequestCodes) {
+                if (code == requestCode) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+}
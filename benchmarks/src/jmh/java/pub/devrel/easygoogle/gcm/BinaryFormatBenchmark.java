@@ -0,0 +1,103 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The binary message format written by {@link BinaryMessageCodec}: encoding a message, reading a
+ * single field, and framing several messages into one payload as done by
+ * {@link MessageBatcher}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BinaryFormatBenchmark {
+
+    @Param({"4", "16"})
+    public int fields;
+
+    private String[] mKeys;
+    private String[] mValues;
+    private byte[] mEncoded;
+    private List<byte[]> mFrames;
+    private byte[] mFramed;
+
+    @Setup
+    public void setUp() {
+        mKeys = new String[fields];
+        mValues = new String[fields];
+        for (int i = 0; i < fields; i++) {
+            mKeys[i] = "field_" + i;
+            mValues[i] = "value of field " + i + " with some typical payload text";
+        }
+
+        mEncoded = encode();
+        mFrames = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            mFrames.add(mEncoded);
+        }
+        mFramed = BinaryFormat.frame(mFrames);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        BinaryFormat.writeVarint(out, mKeys.length);
+        for (int i = 0; i < mKeys.length; i++) {
+            BinaryFormat.writeField(out, mKeys[i], mValues[i]);
+        }
+
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public String getFirstField() {
+        return BinaryFormat.getString(mEncoded, mKeys[0]);
+    }
+
+    @Benchmark
+    public String getLastField() {
+        return BinaryFormat.getString(mEncoded, mKeys[mKeys.length - 1]);
+    }
+
+    @Benchmark
+    public String getMissingField() {
+        return BinaryFormat.getString(mEncoded, "missing");
+    }
+
+    @Benchmark
+    public byte[] frame() {
+        return BinaryFormat.frame(mFrames);
+    }
+
+    @Benchmark
+    public List<byte[]> unframe() {
+        return BinaryFormat.unframe(mFramed);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message ID allocation as done by {@link MessageIdAllocator}, over an in-memory
+ * {@link BlockIdAllocator.CeilingStore} instead of SharedPreferences.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BlockIdAllocatorBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int blockSize;
+
+    private FakeCeilingStore mStore;
+    private BlockIdAllocator mAllocator;
+
+    @Setup
+    public void setUp() {
+        mStore = new FakeCeilingStore();
+        mAllocator = new BlockIdAllocator(mStore, blockSize);
+    }
+
+    @Benchmark
+    public long next() {
+        return mAllocator.next();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long nextContended() {
+        return mAllocator.next();
+    }
+
+    private static class FakeCeilingStore implements BlockIdAllocator.CeilingStore {
+
+        private volatile long mCeiling;
+
+        @Override
+        public long load() {
+            return mCeiling;
+        }
+
+        @Override
+        public boolean save(long ceiling) {
+            mCeiling = ceiling;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Duplicate checks done for every inbound message, for new messages (which evict the oldest
+ * entry once the filter is full) and redelivered ones, with and without a journal.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DuplicateFilterBenchmark {
+
+    @Param({"256", "4096"})
+    public int capacity;
+
+    @Param({"false", "true"})
+    public boolean journaled;
+
+    private DuplicateFilter mFilter;
+    private String[] mSeenIds;
+    private long mNextId;
+    private int mNextSeen;
+
+    @Setup
+    public void setUp() {
+        mFilter = new DuplicateFilter(capacity, journaled ? new NullJournal() : null);
+        mSeenIds = new String[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSeenIds[i] = "0:1447000000000000%" + i;
+            mFilter.isDuplicate(mSeenIds[i]);
+        }
+        mNextId = capacity;
+    }
+
+    @Benchmark
+    public boolean newMessage() {
+        return mFilter.isDuplicate("0:1447000000000000%" + mNextId++);
+    }
+
+    @Benchmark
+    public boolean redeliveredMessage() {
+        String id = mSeenIds[mNextSeen];
+        mNextSeen = (mNextSeen + 1) % mSeenIds.length;
+        return mFilter.isDuplicate(id);
+    }
+
+    // Measures the filter's own bookkeeping rather than file I/O
+    private static class NullJournal implements DuplicateFilter.Journal {
+
+        @Override
+        public List<Long> load() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public void append(long hash) {}
+
+        @Override
+        public void rewrite(Iterable<Long> hashes) {}
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Upstream messages sent per second by {@link SendEngine} over a fake transport with a fixed
+ * per-message latency. One in every ten messages shares a slow ordering key, whose sends take
+ * ten times as long, to show whether it holds up the others.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SendEngineBenchmark {
+
+    private static final int MESSAGES = 200;
+    private static final long LATENCY_NS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final String SLOW_KEY = "slow";
+
+    @Param({"1", "4", "8"})
+    public int threads;
+
+    @Param({"20"})
+    public int window;
+
+    private List<FakeMessage> mMessages;
+    private SendEngine<FakeMessage> mEngine;
+
+    @Setup
+    public void setUp() {
+        mMessages = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            // Unordered messages get a key of their own, as with OutboundQueue
+            mMessages.add(new FakeMessage(i % 10 == 0 ? SLOW_KEY : Integer.toString(i)));
+        }
+
+        mEngine = new SendEngine<>(new SendEngine.Transport<FakeMessage>() {
+            @Override
+            public void send(FakeMessage message) throws IOException {
+                boolean slow = SLOW_KEY.equals(message.getOrderingKey());
+                LockSupport.parkNanos(slow ? 10 * LATENCY_NS : LATENCY_NS);
+            }
+        }, threads, window);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mEngine.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public SendEngine.Result<FakeMessage> sendAll() {
+        return mEngine.sendAll(new ListSource(mMessages));
+    }
+
+    private static class FakeMessage implements SendEngine.Message {
+
+        private final String mOrderingKey;
+
+        FakeMessage(String orderingKey) {
+            mOrderingKey = orderingKey;
+        }
+
+        @Override
+        public String getOrderingKey() {
+            return mOrderingKey;
+        }
+    }
+
+    private static class ListSource implements SendEngine.Source<FakeMessage> {
+
+        private final List<FakeMessage> mMessages;
+        private int mNext;
+
+        ListSource(List<FakeMessage> messages) {
+            mMessages = messages;
+        }
+
+        @Override
+        public List<FakeMessage> next(int limit) {
+            int end = Math.min(mMessages.size(), mNext + limit);
+            List<FakeMessage> next = mMessages.subList(mNext, end);
+            mNext = end;
+            return next;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service lookup by permission, as done by {@link ServiceRegistry} from its index and by
+ * {@link GCMUtils#findServices} with a linear scan, for manifests of different sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ServiceIndexBenchmark {
+
+    private static final String GCM_PERMISSION = "com.example.permission.C2D_MESSAGE";
+
+    @Param({"4", "32", "256"})
+    public int services;
+
+    private List<String> mPermissions;
+    private List<String> mServices;
+    private ServiceIndex<String> mIndex;
+
+    @Setup
+    public void setUp() {
+        mPermissions = new ArrayList<>(services);
+        mServices = new ArrayList<>(services);
+        for (int i = 0; i < services; i++) {
+            // Most services declare no permission, a few declare the GCM one
+            String permission = null;
+            if (i % 8 == 0) {
+                permission = GCM_PERMISSION;
+            } else if (i % 8 == 1) {
+                permission = "com.example.permission.OTHER";
+            }
+
+            mPermissions.add(permission);
+            mServices.add("com.example.Service" + i);
+        }
+
+        mIndex = new ServiceIndex<>(mPermissions, mServices);
+    }
+
+    @Benchmark
+    public List<String> indexGet() {
+        return mIndex.get(GCM_PERMISSION);
+    }
+
+    @Benchmark
+    public List<String> linearFilter() {
+        return ServiceIndex.filter(mPermissions, mServices, GCM_PERMISSION);
+    }
+
+    @Benchmark
+    public ServiceIndex<String> buildIndex() {
+        return new ServiceIndex<>(mPermissions, mServices);
+    }
+}
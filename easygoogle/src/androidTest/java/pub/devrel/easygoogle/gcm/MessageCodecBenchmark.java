@@ -0,0 +1,156 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares {@link BinaryMessageCodec} with parceling a {@link Bundle}, which is what carrying
+ * message data as Intent extras costs. Runs on a device with
+ * {@code ./gradlew :easygoogle:connectedAndroidTest}, results are logged under the
+ * "MessageCodecBenchmark" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageCodecBenchmark {
+
+    private static final String TAG = "MessageCodecBenchmark";
+
+    private static final int WARMUP_ITERATIONS = 2000;
+    private static final int ITERATIONS = 20000;
+    private static final int FIELDS = 10;
+
+    private final MessageCodec mCodec = new BinaryMessageCodec();
+    private Bundle mData;
+    private byte[] mEncoded;
+    private byte[] mParceled;
+    private String mLastKey;
+
+    // Keeps results reachable so that the work is not optimized away
+    private int mSink;
+
+    @Before
+    public void setUp() {
+        mData = new Bundle();
+        for (int i = 0; i < FIELDS; i++) {
+            mData.putString("field_" + i, "value of field " + i + " with some typical text");
+        }
+        mLastKey = "field_" + (FIELDS - 1);
+
+        mEncoded = mCodec.encode(mData);
+        mParceled = parcel(mData);
+        Log.i(TAG, "size: codec=" + mEncoded.length + "B parcel=" + mParceled.length + "B");
+    }
+
+    @Test
+    public void encode() {
+        measure("encode/codec", new Runnable() {
+            @Override
+            public void run() {
+                mSink += mCodec.encode(mData).length;
+            }
+        });
+        measure("encode/parcel", new Runnable() {
+            @Override
+            public void run() {
+                mSink += parcel(mData).length;
+            }
+        });
+    }
+
+    @Test
+    public void decode() {
+        assertEquals(mData.getString(mLastKey), mCodec.decode(mEncoded).getString(mLastKey));
+
+        measure("decode/codec", new Runnable() {
+            @Override
+            public void run() {
+                mSink += mCodec.decode(mEncoded).size();
+            }
+        });
+        measure("decode/parcel", new Runnable() {
+            @Override
+            public void run() {
+                mSink += unparcel(mParceled).size();
+            }
+        });
+    }
+
+    @Test
+    public void readOneField() {
+        assertEquals(mData.getString(mLastKey), mCodec.getString(mEncoded, mLastKey));
+
+        measure("getString/codec", new Runnable() {
+            @Override
+            public void run() {
+                mSink += mCodec.getString(mEncoded, mLastKey).length();
+            }
+        });
+        measure("getString/parcel", new Runnable() {
+            @Override
+            public void run() {
+                mSink += unparcel(mParceled).getString(mLastKey).length();
+            }
+        });
+    }
+
+    private void measure(String name, Runnable operation) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            operation.run();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            operation.run();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Log.i(TAG, name + ": " + (elapsed / ITERATIONS) + "ns/op (" + mSink + ")");
+    }
+
+    private static byte[] parcel(Bundle data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(data);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Bundle unparcel(byte[] parceled) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(parceled, 0, parceled.length);
+            parcel.setDataPosition(0);
+
+            // Bundles unparcel lazily, reading the size forces it
+            Bundle data = parcel.readBundle();
+            data.size();
+            return data;
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide metrics recorded by EasyGoogle. By default metrics are kept in memory by an
+ * {@link InMemorySink}, see {@link #getSink()}. Apps can forward them elsewhere with
+ * {@link #setSink(Sink)}.
+ */
+public class EasyGoogleMetrics {
+
+    // Latencies, in milliseconds
+    public static final String GAC_CONNECT_MS = "gac_connect_ms";
+    public static final String SILENT_SIGN_IN_MS = "silent_sign_in_ms";
+    public static final String GCM_SEND_MS = "gcm_send_ms";
+    public static final String GCM_RECEIVE_TO_LISTENER_MS = "gcm_receive_to_listener_ms";
+
+    // Counters
+    public static final String GAC_CONNECT_FAILURES = "gac_connect_failures";
+    public static final String GAC_RESOLUTIONS = "gac_resolutions";
+    public static final String SILENT_SIGN_IN_FAILURES = "silent_sign_in_failures";
+    public static final String GCM_SEND_FAILURES = "gcm_send_failures";
+    public static final String GCM_FANOUT = "gcm_fanout";
+    public static final String GAC_RECONNECTS_AVOIDED = "gac_reconnects_avoided";
+    public static final String GAC_LINGER_DISCONNECTS = "gac_linger_disconnects";
+    public static final String GCM_COMPRESSION_BYTES_SAVED = "gcm_compression_bytes_saved";
+    public static final String GCM_DECOMPRESSION_FAILURES = "gcm_decompression_failures";
+    public static final String GCM_MESSAGES_COALESCED = "gcm_messages_coalesced";
+    public static final String GCM_LISTENER_DROPS = "gcm_listener_drops";
+    public static final String GCM_SEND_DROPS = "gcm_send_drops";
+
+    // Thread CPU time, in nanoseconds
+    public static final String GCM_COMPRESS_CPU_NS = "gcm_compress_cpu_ns";
+    public static final String GCM_DECOMPRESS_CPU_NS = "gcm_decompress_cpu_ns";
+
+    // Work counters, for catching regressions in the number of expensive calls
+    public static final String GAC_CLIENT_BUILDS = "gac_client_builds";
+    public static final String INSTANCE_ID_TOKEN_FETCHES = "instance_id_token_fetches";
+    public static final String PACKAGE_SCANS = "package_scans";
+
+    private static final String[] LATENCIES = new String[]{
+            GAC_CONNECT_MS, SILENT_SIGN_IN_MS, GCM_SEND_MS, GCM_RECEIVE_TO_LISTENER_MS};
+    private static final String[] COUNTERS = new String[]{
+            GAC_CONNECT_FAILURES, GAC_RESOLUTIONS, SILENT_SIGN_IN_FAILURES, GCM_SEND_FAILURES,
+            GCM_FANOUT, GAC_RECONNECTS_AVOIDED, GAC_LINGER_DISCONNECTS,
+            GCM_COMPRESSION_BYTES_SAVED, GCM_DECOMPRESSION_FAILURES, GCM_MESSAGES_COALESCED,
+            GCM_LISTENER_DROPS, GCM_SEND_DROPS, GCM_COMPRESS_CPU_NS, GCM_DECOMPRESS_CPU_NS,
+            GAC_CLIENT_BUILDS, INSTANCE_ID_TOKEN_FETCHES, PACKAGE_SCANS};
+
+    private static volatile Sink sSink = new InMemorySink();
+
+    /**
+     * Destination for metrics. Methods may be called from any thread and should return quickly.
+     */
+    public interface Sink {
+
+        /**
+         * @param name the metric name, such as {@link #GAC_CONNECT_MS}.
+         * @param millis the latency, in milliseconds.
+         */
+        void recordLatency(String name, long millis);
+
+        /**
+         * @param name the counter name, such as {@link #GAC_CONNECT_FAILURES}.
+         * @param delta the amount to add.
+         */
+        void increment(String name, long delta);
+    }
+
+    /**
+     * Default sink, keeps a {@link Histogram} per latency and a total per counter. All EasyGoogle
+     * metrics are created up front, so recording them does not allocate.
+     */
+    public static class InMemorySink implements Sink {
+
+        private final ConcurrentHashMap<String, Histogram> mHistograms =
+                new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, AtomicLong> mCounters = new ConcurrentHashMap<>();
+
+        public InMemorySink() {
+            for (String name : LATENCIES) {
+                mHistograms.put(name, new Histogram());
+            }
+            for (String name : COUNTERS) {
+                mCounters.put(name, new AtomicLong());
+            }
+        }
+
+        @Override
+        public void recordLatency(String name, long millis) {
+            Histogram histogram = mHistograms.get(name);
+            if (histogram == null) {
+                mHistograms.putIfAbsent(name, new Histogram());
+                histogram = mHistograms.get(name);
+            }
+            histogram.record(millis);
+        }
+
+        @Override
+        public void increment(String name, long delta) {
+            AtomicLong counter = mCounters.get(name);
+            if (counter == null) {
+                mCounters.putIfAbsent(name, new AtomicLong());
+                counter = mCounters.get(name);
+            }
+            counter.addAndGet(delta);
+        }
+
+        /**
+         * @param name the metric name.
+         * @return a snapshot of the latency histogram, or null if nothing was recorded.
+         */
+        public Histogram.Snapshot getLatency(String name) {
+            Histogram histogram = mHistograms.get(name);
+            return histogram == null ? null : histogram.snapshot();
+        }
+
+        /**
+         * @param name the counter name.
+         * @return the counter's total.
+         */
+        public long getCounter(String name) {
+            AtomicLong counter = mCounters.get(name);
+            return counter == null ? 0 : counter.get();
+        }
+
+        /**
+         * @return snapshots of all latency histograms, by name.
+         */
+        public Map<String, Histogram.Snapshot> getLatencies() {
+            Map<String, Histogram.Snapshot> snapshots = new HashMap<>();
+            for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+                snapshots.put(entry.getKey(), entry.getValue().snapshot());
+            }
+
+            return Collections.unmodifiableMap(snapshots);
+        }
+
+        /**
+         * @return all counter totals, by name.
+         */
+        public Map<String, Long> getCounters() {
+            Map<String, Long> counters = new HashMap<>();
+            for (Map.Entry<String, AtomicLong> entry : mCounters.entrySet()) {
+                counters.put(entry.getKey(), entry.getValue().get());
+            }
+
+            return Collections.unmodifiableMap(counters);
+        }
+    }
+
+    private EasyGoogleMetrics() {}
+
+    /**
+     * Replace the sink that receives all metrics.
+     * @param sink the new sink, or null to restore a new {@link InMemorySink}.
+     */
+    public static void setSink(Sink sink) {
+        sSink = sink != null ? sink : new InMemorySink();
+    }
+
+    /**
+     * @return the current sink, an {@link InMemorySink} unless replaced.
+     */
+    public static Sink getSink() {
+        return sSink;
+    }
+
+    public static void recordLatency(String name, long millis) {
+        sSink.recordLatency(name, millis);
+    }
+
+    public static void increment(String name) {
+        sSink.increment(name, 1);
+    }
+
+    public static void increment(String name, long delta) {
+        sSink.increment(name, delta);
+    }
+}
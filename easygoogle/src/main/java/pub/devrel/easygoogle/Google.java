@@ -20,12 +20,15 @@ import android.util.Log;
 
 import com.google.android.gms.common.api.GoogleApiClient;
 
+import pub.devrel.easygoogle.gac.AccountCache;
 import pub.devrel.easygoogle.gac.AppInvites;
 import pub.devrel.easygoogle.gac.GacFragment;
+import pub.devrel.easygoogle.gac.GoogleApiClientManager;
 import pub.devrel.easygoogle.gac.SignIn;
 import pub.devrel.easygoogle.gac.SmartLock;
 import pub.devrel.easygoogle.gcm.Messaging;
 import pub.devrel.easygoogle.gcm.MessagingFragment;
+import pub.devrel.easygoogle.gcm.MessagingOptions;
 
 /**
  * Google is the user-facing interface for all APIs, acts as a controller for a number of
@@ -50,14 +53,19 @@ public class Google {
 
         private SignIn.SignInListener mSignInListener;
         private String mServerClientId;
+        private boolean mPersistSignIn;
 
         private Messaging.MessagingListener mMessagingListener;
         private String mSenderId;
+        private MessagingOptions mMessagingOptions;
 
         private AppInvites.AppInviteListener mAppInviteListener;
 
         private SmartLock.SmartLockListener mSmartLockListener;
 
+        private boolean mLazyConnect;
+        private long mLingerMs = -1;
+
         public Builder(FragmentActivity activity){
             mActivity = activity;
         }
@@ -84,6 +92,17 @@ public class Google {
             return this;
         }
 
+        /**
+         * Remember whether the user is signed in across process restarts, so that
+         * {@link SignIn#isSignedIn()} has an answer before silent sign-in completes.
+         * @param persist true to persist the signed-in state, see {@link AccountCache}.
+         * @return self, for chaining.
+         */
+        public Builder setPersistSignIn(boolean persist) {
+            mPersistSignIn = persist;
+            return this;
+        }
+
         /**
          * Initialize {@link Messaging}.
          * @param listener listener for GCM events.
@@ -96,6 +115,19 @@ public class Google {
             return this;
         }
 
+        /**
+         * Initialize {@link Messaging}.
+         * @param listener listener for GCM events.
+         * @param senderId GCM sender Id.
+         * @param options (optional) tuning for message delivery, see {@link MessagingOptions}.
+         * @return self, for chaining.
+         */
+        public Builder enableMessaging(Messaging.MessagingListener listener, String senderId,
+                                       MessagingOptions options) {
+            mMessagingOptions = options;
+            return enableMessaging(listener, senderId);
+        }
+
         /**
          * Initialize {@link AppInvites}.
          * @param listener listener for app invites events.
@@ -116,31 +148,74 @@ public class Google {
             return this;
         }
 
+        /**
+         * Only build and connect the <code>GoogleApiClient</code> when an enabled service first
+         * needs it, or when {@link Google#prewarm()} is called, instead of whenever the
+         * Activity starts. Silent sign-in is deferred until the client connects.
+         * @param lazyConnect true to connect on first use.
+         * @return self, for chaining.
+         */
+        public Builder setLazyConnect(boolean lazyConnect) {
+            mLazyConnect = lazyConnect;
+            return this;
+        }
+
+        /**
+         * Keep the <code>GoogleApiClient</code> connected for a while after the Activity stops,
+         * so that rotations and quick app switches do not reconnect and repeat silent sign-in.
+         * This applies to every Activity in the process.
+         * @param lingerMs time to stay connected in milliseconds, 0 to disconnect immediately.
+         * @return self, for chaining.
+         */
+        public Builder setConnectionLinger(long lingerMs) {
+            mLingerMs = lingerMs;
+            return this;
+        }
+
         /**
          * Build the {@link Google} instance for use with all enabled services,
          * @return a Google instance.
          */
         public Google build() {
             Google google = new Google(mActivity);
-            if (mSignInListener != null) {
-                if(mServerClientId != null) {
-                    google.mGacFragment.setServerClientId(mServerClientId);
-                }
-                google.mGacFragment.enableModule(SignIn.class, mSignInListener);
+            google.mGacFragment.setLazyConnect(mLazyConnect);
+            if (mLingerMs >= 0) {
+                GoogleApiClientManager.getInstance().setLingerMs(mLingerMs);
             }
 
-            if (mSenderId != null) {
-                google.mMessagingFragment.setSenderId(mSenderId);
-                google.mMessagingFragment.setMessagingListener(mMessagingListener);
-            }
+            // Enable all modules before building the GoogleApiClient once
+            google.mGacFragment.beginModules();
+            try {
+                if (mSignInListener != null) {
+                    if(mServerClientId != null) {
+                        google.mGacFragment.setServerClientId(mServerClientId);
+                    }
+                    if (mPersistSignIn) {
+                        AccountCache.getInstance().setPersistent(mActivity, true);
+                    }
+                    google.mGacFragment.enableModule(SignIn.class, mSignInListener);
+                }
 
-            if (mAppInviteListener != null) {
-                google.mGacFragment.enableModule(AppInvites.class, mAppInviteListener);
-            }
+                if (mSenderId != null) {
+                    google.mMessagingFragment.setSenderId(mSenderId);
+                    google.mMessagingFragment.setMessagingListener(mMessagingListener);
+                    if (mMessagingOptions != null) {
+                        google.mMessagingFragment.setMessagingOptions(mMessagingOptions);
+                    }
+                }
 
-            if (mSmartLockListener != null) {
-                google.mGacFragment.enableModule(SmartLock.class, mSmartLockListener);
+                if (mAppInviteListener != null) {
+                    google.mGacFragment.enableModule(AppInvites.class, mAppInviteListener);
+                }
+
+                if (mSmartLockListener != null) {
+                    google.mGacFragment.enableModule(SmartLock.class, mSmartLockListener);
+                }
+            } finally {
+                // Enabling a module can throw, never leave the batch open
+                google.mGacFragment.commitModules();
             }
+
             return google;
         }
     }
@@ -165,6 +240,15 @@ public class Google {
         return googleApiClient;
     }
 
+    /**
+     * Start connecting the <code>GoogleApiClient</code> ahead of first use, for example when
+     * the user is about to reach a screen that signs in. Only useful with
+     * {@link Builder#setLazyConnect(boolean)}.
+     */
+    public void prewarm() {
+        mGacFragment.prewarm();
+    }
+
     /**
      * Get the local {@link Messaging} instance to access public methods. If Messaging is not
      * properly initialized, there will be a warning in logcat.
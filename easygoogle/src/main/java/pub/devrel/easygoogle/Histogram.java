@@ -0,0 +1,176 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram with fixed bucket bounds. Recording a value does not allocate, so it is
+ * safe to use on hot paths.
+ */
+public class Histogram {
+
+    /**
+     * Default bucket upper bounds, suitable for latencies in milliseconds.
+     */
+    public static final long[] LATENCY_BOUNDS_MS = new long[]{
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+
+    private final long[] mBounds;
+
+    // One count per bound, plus an overflow bucket
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * An immutable copy of a histogram's values at some point in time.
+     */
+    public static class Snapshot {
+
+        private final long[] mBounds;
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        private Snapshot(long[] bounds, long[] counts, long count, long sum, long max) {
+            mBounds = bounds;
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        /**
+         * @return the upper bound (inclusive) of each bucket, except the last overflow bucket.
+         */
+        public long[] getBounds() {
+            return mBounds.clone();
+        }
+
+        /**
+         * @return the number of values in each bucket. There is one more bucket than bounds.
+         */
+        public long[] getCounts() {
+            return mCounts.clone();
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getSum() {
+            return mSum;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * Estimate a percentile as the upper bound of the bucket containing it.
+         * @param percentile a value between 0 and 100.
+         * @return the estimate, or {@link #getMax()} if it falls in the overflow bucket.
+         */
+        public long getPercentile(double percentile) {
+            long rank = (long) Math.ceil(mCount * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < mBounds.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(mBounds[i], mMax);
+                }
+            }
+
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return "Histogram{count=" + mCount + ", mean=" + getMean()
+                    + ", p50=" + getPercentile(50) + ", p99=" + getPercentile(99)
+                    + ", max=" + mMax + ", counts=" + Arrays.toString(mCounts) + "}";
+        }
+    }
+
+    public Histogram() {
+        this(LATENCY_BOUNDS_MS);
+    }
+
+    /**
+     * Create a histogram.
+     * @param bounds ascending bucket upper bounds (inclusive).
+     */
+    public Histogram(long[] bounds) {
+        mBounds = bounds.clone();
+        mCounts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * Record a value.
+     * @param value the value, negative values are recorded as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+
+        int bucket = 0;
+        while (bucket < mBounds.length && value > mBounds[bucket]) {
+            bucket++;
+        }
+
+        mCounts.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // Retry
+        }
+    }
+
+    /**
+     * @return a copy of the current values. Values recorded concurrently may or may not be
+     * included.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[mCounts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mCounts.get(i);
+        }
+
+        return new Snapshot(mBounds, counts, mCount.get(), mSum.get(), mMax.get());
+    }
+
+    /**
+     * Clear all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gac;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
+
+/**
+ * Process-wide cache of the signed-in account, updated by every sign-in, silent sign-in and
+ * sign-out result seen by {@link SignIn}. Reads never call Play services and never block, so
+ * they are safe to use while binding views.
+ *
+ * Optionally, whether the user is signed in (and their email) is also persisted, so that
+ * {@link #isSignedIn()} has an answer before the first silent sign-in of a new process
+ * completes. The account itself is only available once a result arrives.
+ */
+public class AccountCache {
+
+    private static final String TAG = "AccountCache";
+
+    private static final String PREFS_NAME = "easygoogle_account";
+    private static final String PREF_SIGNED_IN = "signed_in";
+    private static final String PREF_EMAIL = "email";
+
+    private static final AccountCache sInstance = new AccountCache();
+
+    // Immutable, replaced as a whole so that readers never see a partial update
+    private static class State {
+
+        private final boolean mKnown;
+        private final boolean mSignedIn;
+        private final GoogleSignInAccount mAccount;
+        private final String mEmail;
+
+        private State(boolean known, boolean signedIn, GoogleSignInAccount account,
+                      String email) {
+            mKnown = known;
+            mSignedIn = signedIn;
+            mAccount = account;
+            mEmail = email;
+        }
+    }
+
+    private volatile State mState = new State(false, false, null, null);
+    private SharedPreferences mPrefs;
+
+    public static AccountCache getInstance() {
+        return sInstance;
+    }
+
+    private AccountCache() {}
+
+    /**
+     * Persist the signed-in state across process restarts, or stop doing so and delete it.
+     * @param context calling Context.
+     * @param persistent true to persist.
+     */
+    public synchronized void setPersistent(Context context, boolean persistent) {
+        SharedPreferences prefs = context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!persistent) {
+            mPrefs = null;
+            prefs.edit().clear().apply();
+            return;
+        }
+
+        if (mPrefs != null) {
+            return;
+        }
+        mPrefs = prefs;
+
+        // Without a result in this process yet, start from the persisted state
+        if (!mState.mKnown) {
+            mState = new State(false, prefs.getBoolean(PREF_SIGNED_IN, false), null,
+                    prefs.getString(PREF_EMAIL, null));
+        } else {
+            persist(mState);
+        }
+    }
+
+    /**
+     * Record the result of a sign-in, silent sign-in or sign-out. Failures that do not mean the
+     * user is signed out, such as network errors, should not be recorded.
+     * @param account the signed-in account, or null if the user is signed out.
+     */
+    public synchronized void update(GoogleSignInAccount account) {
+        Log.d(TAG, "update: " + (account != null ? "signed in" : "signed out"));
+        State state = new State(true, account != null, account,
+                account != null ? account.getEmail() : null);
+        mState = state;
+
+        if (mPrefs != null) {
+            persist(state);
+        }
+    }
+
+    /**
+     * @return the signed-in account, or null if signed out or no result has arrived yet in this
+     * process.
+     */
+    public GoogleSignInAccount getAccount() {
+        return mState.mAccount;
+    }
+
+    /**
+     * Note that unlike {@link SignIn#isSignedIn()}, this can be true while
+     * {@link #getAccount()} is still null, when the persisted state is known but no result has
+     * arrived yet.
+     * @return true if the most recent result was a sign-in. Before any result arrives this is
+     * the persisted state, if persistence is enabled, and otherwise false.
+     */
+    public boolean isSignedIn() {
+        return mState.mSignedIn;
+    }
+
+    /**
+     * @return the signed-in user's email, if known, even before the account is available.
+     */
+    public String getEmail() {
+        return mState.mEmail;
+    }
+
+    /**
+     * @return true if a sign-in, silent sign-in or sign-out result has arrived in this process.
+     */
+    public boolean hasResult() {
+        return mState.mKnown;
+    }
+
+    private void persist(State state) {
+        mPrefs.edit()
+                .putBoolean(PREF_SIGNED_IN, state.mSignedIn)
+                .putString(PREF_EMAIL, state.mEmail)
+                .apply();
+    }
+}
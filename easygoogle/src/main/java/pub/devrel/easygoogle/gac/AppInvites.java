@@ -119,6 +119,9 @@ public class AppInvites extends GacModule<AppInvites.AppInviteListener> {
         } else {
             Log.w(TAG, "GoogleAPIClient not connected, can't update invitation.");
             mCachedInvitationIntent = intent;
+
+            // A lazily connected client must connect to confirm the invitation
+            getFragment().prewarm();
         }
 
 
@@ -197,6 +200,11 @@ public class AppInvites extends GacModule<AppInvites.AppInviteListener> {
         return new ArrayList<>();
     }
 
+    @Override
+    public List<Integer> getRequestCodes() {
+        return Arrays.asList(RC_INVITE);
+    }
+
     @Override
     public void onConnected() {
         super.onConnected();
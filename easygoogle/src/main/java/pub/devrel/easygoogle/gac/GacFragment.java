@@ -19,6 +19,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentSender;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.util.Log;
 import android.widget.Toast;
@@ -29,9 +30,15 @@ import com.google.android.gms.common.api.Api;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.Scope;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import pub.devrel.easygoogle.EasyGoogleMetrics;
 import pub.devrel.easygoogle.R;
 
 /**
@@ -47,15 +54,58 @@ public class GacFragment extends Fragment implements
     private static final String KEY_IS_RESOLVING = "is_resolving";
     private static final String KEY_SHOULD_RESOLVE = "should_resolve";
 
+    /**
+     * Creates the GoogleApiClient for a configured builder. Replaceable so that tests and
+     * profiling runs can substitute a local fake client, see
+     * {@link #setClientFactory(ClientFactory)}.
+     */
+    public interface ClientFactory {
+        GoogleApiClient create(GoogleApiClient.Builder builder);
+    }
+
+    private static final ClientFactory DEFAULT_CLIENT_FACTORY = new ClientFactory() {
+        @Override
+        public GoogleApiClient create(GoogleApiClient.Builder builder) {
+            return builder.build();
+        }
+    };
+
+    private static volatile ClientFactory sClientFactory = DEFAULT_CLIENT_FACTORY;
+
     private String mServerClientId;
 
     private GoogleApiClient mGoogleApiClient;
+    private Object mClientKey;
+    private GoogleApiClientManager.Lease mLease;
+    private boolean mCallbacksRegistered;
+
+    // True from onStop() to onStart() when the Activity is being re-created
+    private boolean mChangingConfigurations;
     private Map<Class<? extends GacModule>, GacModule> mModules = new HashMap<>();
 
+    // Module for each declared request code, and modules that declared none
+    private final ResultRoutes<GacModule> mResultRoutes = new ResultRoutes<>();
+
+    // Index of this fragment in the FragmentManager, -1 until computed
+    private int mFragmentIndex = -1;
+
     private boolean mIsResolving = false;
     private boolean mShouldResolve = false;
     private int mResolutionCode;
 
+    // Time the current connection attempt started, 0 if none
+    private long mConnectStartMs;
+
+    // In lazy mode the client is only built and connected once something needs it
+    private boolean mLazyConnect;
+    private boolean mConnectRequested;
+    private boolean mStarted;
+    private final List<Runnable> mPendingOperations = new ArrayList<>();
+
+    // Modules enabled between beginModules() and commitModules() share a single rebuild
+    private int mModuleBatchDepth;
+    private boolean mModulesChanged;
+
     private void buildGoogleApiClient() {
         Log.d(TAG, "buildGoogleApiClient: " + mModules);
 
@@ -65,10 +115,14 @@ public class GacFragment extends Fragment implements
             return;
         }
 
-        GoogleApiClient.Builder builder = new GoogleApiClient.Builder(getActivity())
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this);
+        // The client is shared with other Activities, so it must not hold this one. Callbacks
+        // are registered while started instead, see attachClient().
+        GoogleApiClient.Builder builder =
+                new GoogleApiClient.Builder(getActivity().getApplicationContext());
 
+        // Clients are shared between fragments with the same APIs, options and scopes
+        Map<Api, Api.ApiOptions.HasOptions> apiOptions = new HashMap<>();
+        Set<Scope> scopes = new HashSet<>();
         for (GacModule<?> api : mModules.values()) {
             for (Api apiObj : api.getApis()) {
                 // Add Api with options, if possible
@@ -78,14 +132,92 @@ public class GacFragment extends Fragment implements
                 } else {
                     builder.addApi(apiObj);
                 }
+                apiOptions.put(apiObj, options);
             }
 
             for (Scope scopeObj : api.getScopes()) {
                 builder.addScope(scopeObj);
+                scopes.add(scopeObj);
+            }
+        }
+
+        Object key = Arrays.asList(apiOptions, scopes);
+        GoogleApiClient client = GoogleApiClientManager.getInstance().getClient(key, builder);
+        if (client == mGoogleApiClient) {
+            Log.d(TAG, "buildGoogleApiClient: APIs and scopes unchanged, keeping client");
+            return;
+        }
+
+        // Move any lease over to the new client
+        detachClient(false);
+        mGoogleApiClient = client;
+        mClientKey = key;
+        if (mStarted) {
+            attachClient();
+        }
+    }
+
+    /**
+     * Create a GoogleApiClient with the current {@link ClientFactory}.
+     */
+    static GoogleApiClient createClient(GoogleApiClient.Builder builder) {
+        EasyGoogleMetrics.increment(EasyGoogleMetrics.GAC_CLIENT_BUILDS);
+        return sClientFactory.create(builder);
+    }
+
+    /**
+     * Register for callbacks from the shared client and lease it, which connects it if needed.
+     */
+    private void attachClient() {
+        if (mGoogleApiClient == null) {
+            return;
+        }
+
+        if (!mCallbacksRegistered) {
+            if (!mGoogleApiClient.isConnected()) {
+                mConnectStartMs = SystemClock.elapsedRealtime();
             }
+
+            // Called back immediately if the client is already connected
+            mGoogleApiClient.registerConnectionCallbacks(this);
+            mGoogleApiClient.registerConnectionFailedListener(this);
+            mCallbacksRegistered = true;
         }
 
-        mGoogleApiClient = builder.build();
+        if (mLease == null) {
+            mLease = GoogleApiClientManager.getInstance().acquire(mClientKey,
+                    mGoogleApiClient);
+        }
+    }
+
+    /**
+     * Unregister from the shared client and release the lease, which disconnects it if no other
+     * fragment is using it.
+     * @param keepLease true to keep the client connected, across a configuration change.
+     */
+    private void detachClient(boolean keepLease) {
+        if (mGoogleApiClient == null) {
+            return;
+        }
+
+        if (mCallbacksRegistered) {
+            mGoogleApiClient.unregisterConnectionCallbacks(this);
+            mGoogleApiClient.unregisterConnectionFailedListener(this);
+            mCallbacksRegistered = false;
+        }
+
+        if (mLease != null && !keepLease) {
+            mLease.release();
+            mLease = null;
+        }
+    }
+
+    /**
+     * Replace the factory used to create every GacFragment's GoogleApiClient.
+     * @param factory the new factory, or null to build real clients.
+     */
+    public static void setClientFactory(ClientFactory factory) {
+        sClientFactory = factory != null ? factory : DEFAULT_CLIENT_FACTORY;
     }
 
     @Override
@@ -93,23 +225,41 @@ public class GacFragment extends Fragment implements
         super.onActivityResult(requestCode, resultCode, data);
         Log.d(TAG, "onActivityResult:" + requestCode + ":" + resultCode + ":" + data);
 
-        // Give each API a chance to handle it
-        boolean handled = false;
-        for (GacModule module : mModules.values()) {
-            if (module.handleActivityResult(requestCode, resultCode, data)) {
-                handled = true;
+        // Route directly to the module that declared the request code
+        GacModule route = mResultRoutes.get(requestCode);
+        if (route != null) {
+            if (route.handleActivityResult(requestCode, resultCode, data)) {
+                mIsResolving = false;
+            }
+            return;
+        }
 
+        // Give each remaining API a chance to handle it
+        for (GacModule module : mResultRoutes.getUnrouted()) {
+            if (module.handleActivityResult(requestCode, resultCode, data)) {
                 mIsResolving = false;
                 break;
             }
         }
     }
 
+    /**
+     * Add a newly enabled module's request codes to the routing table.
+     * @throws IllegalArgumentException if a request code does not fit in 16 bits.
+     * @throws IllegalStateException if a request code is already used by another module.
+     */
+    private void addResultRoutes(GacModule<?> module) {
+        mResultRoutes.add(module, module.getRequestCodes());
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         Log.d(TAG, "onCreate");
 
+        // Keep the modules and the connected client when the Activity is re-created
+        setRetainInstance(true);
+
         if (savedInstanceState != null) {
             mIsResolving = savedInstanceState.getBoolean(KEY_IS_RESOLVING);
             mShouldResolve = savedInstanceState.getBoolean(KEY_SHOULD_RESOLVE);
@@ -121,33 +271,47 @@ public class GacFragment extends Fragment implements
         super.onActivityCreated(savedInstanceState);
         Log.d(TAG, "onActivityCreated");
 
-        buildGoogleApiClient();
+        // The Activity may be new, find this fragment's index again when needed
+        mFragmentIndex = -1;
+
+        // A retained fragment already has its client
+        if (mGoogleApiClient == null && (!mLazyConnect || mConnectRequested)) {
+            buildGoogleApiClient();
+        }
     }
 
     @Override
     public void onStart() {
         super.onStart();
-        if (mGoogleApiClient != null) {
-            mGoogleApiClient.connect();
-        }
+        mStarted = true;
+        attachClient();
 
         for (GacModule module : mModules.values()) {
             module.onStart();
         }
+        mChangingConfigurations = false;
     }
 
     @Override
     public void onStop() {
         super.onStop();
-        if (mGoogleApiClient != null) {
-            mGoogleApiClient.disconnect();
-        }
+        mStarted = false;
+
+        // Keep the lease through a configuration change, this fragment is started again soon
+        mChangingConfigurations = getActivity().isChangingConfigurations();
+        detachClient(mChangingConfigurations);
 
         for (GacModule module : mModules.values()) {
             module.onStop();
         }
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        detachClient(false);
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -159,10 +323,22 @@ public class GacFragment extends Fragment implements
     @Override
     public void onConnected(Bundle bundle) {
         Log.d(TAG, "onConnected: " + bundle);
+        if (mConnectStartMs != 0) {
+            EasyGoogleMetrics.recordLatency(EasyGoogleMetrics.GAC_CONNECT_MS,
+                    SystemClock.elapsedRealtime() - mConnectStartMs);
+            mConnectStartMs = 0;
+        }
 
         for (GacModule module : mModules.values()) {
             module.onConnected();
         }
+
+        // Run operations that were waiting for the connection
+        List<Runnable> operations = new ArrayList<>(mPendingOperations);
+        mPendingOperations.clear();
+        for (Runnable operation : operations) {
+            operation.run();
+        }
     }
 
     @Override
@@ -173,11 +349,16 @@ public class GacFragment extends Fragment implements
     @Override
     public void onConnectionFailed(ConnectionResult connectionResult) {
         Log.d(TAG, "onConnectionFailed: " + connectionResult);
+        EasyGoogleMetrics.increment(EasyGoogleMetrics.GAC_CONNECT_FAILURES);
 
         if (connectionResult.hasResolution()) {
             for (GacModule module : mModules.values()) {
                 module.onResolvableFailure(connectionResult);
             }
+        } else if (!mPendingOperations.isEmpty()) {
+            // These can never run, whether or not the failure is shown to the user
+            Log.w(TAG, "Dropping " + mPendingOperations.size() + " pending operations");
+            mPendingOperations.clear();
         }
 
         if (!mIsResolving && mShouldResolve) {
@@ -186,6 +367,7 @@ public class GacFragment extends Fragment implements
                 try {
                     connectionResult.startResolutionForResult(getActivity(), maskRequestCode(mResolutionCode));
                     mIsResolving = true;
+                    EasyGoogleMetrics.increment(EasyGoogleMetrics.GAC_RESOLUTIONS);
                 } catch (IntentSender.SendIntentException e) {
                     Log.e(TAG, "Could not resolve " + connectionResult, e);
                     mIsResolving = false;
@@ -237,14 +419,11 @@ public class GacFragment extends Fragment implements
      * @return the masked request code to use instead.
      */
     protected int maskRequestCode(int requestCode) {
-        if ((requestCode & 0xffff0000) != 0) {
-            throw new IllegalArgumentException("Can only use lower 16 bits for requestCode");
+        if (mFragmentIndex < 0) {
+            mFragmentIndex = getActivity().getSupportFragmentManager().getFragments()
+                    .indexOf(this);
         }
-
-        int fragmentIndex = getActivity().getSupportFragmentManager().getFragments().indexOf(this);
-        int maskedCode = requestCode + ((fragmentIndex + 1) << 16);
-
-        return maskedCode;
+        return RequestCodes.mask(requestCode, mFragmentIndex);
     }
 
     /**
@@ -286,10 +465,86 @@ public class GacFragment extends Fragment implements
         return mServerClientId;
     }
 
+    /**
+     * Get the GoogleApiClient. In lazy mode this counts as first use, so the client is built and
+     * connected if it was not already.
+     * @return the GoogleApiClient, or null if it could not be built.
+     */
     public GoogleApiClient getGoogleApiClient() {
+        if (mGoogleApiClient == null && mLazyConnect) {
+            prewarm();
+        }
+
         return mGoogleApiClient;
     }
 
+    /**
+     * Only build and connect the GoogleApiClient when a module first needs it, or when
+     * {@link #prewarm()} is called, rather than whenever the Activity starts. Must be called
+     * before the Fragment's Activity is created.
+     * @param lazyConnect true to connect on first use, false to connect on start (default).
+     */
+    public void setLazyConnect(boolean lazyConnect) {
+        mLazyConnect = lazyConnect;
+    }
+
+    public boolean isLazyConnect() {
+        return mLazyConnect;
+    }
+
+    /**
+     * @return true if the GoogleApiClient has been built. Unlike {@link #getGoogleApiClient()}
+     * this never builds the client.
+     */
+    public boolean hasGoogleApiClient() {
+        return mGoogleApiClient != null;
+    }
+
+    /**
+     * @return true if this fragment was stopped for a configuration change and is being
+     * started again with a re-created Activity. Modules can use this to avoid repeating work.
+     */
+    public boolean isChangingConfigurations() {
+        return mChangingConfigurations;
+    }
+
+    /**
+     * Build and start connecting the GoogleApiClient now, ahead of first use. Once requested,
+     * the client is connected on every start, as in non-lazy mode. Has no effect if the client
+     * is already connected or connecting.
+     */
+    public void prewarm() {
+        mConnectRequested = true;
+        if (mGoogleApiClient == null && getActivity() != null) {
+            buildGoogleApiClient();
+        }
+
+        if (mStarted) {
+            attachClient();
+        }
+        if (mLease != null && !mGoogleApiClient.isConnected()
+                && !mGoogleApiClient.isConnecting()) {
+            mConnectStartMs = SystemClock.elapsedRealtime();
+            mGoogleApiClient.connect();
+        }
+    }
+
+    /**
+     * Run an operation that needs a connected GoogleApiClient. If the client is connected the
+     * operation runs immediately, otherwise it is queued until {@link #onConnected(Bundle)} and
+     * a connection is started if needed. Must be called on the main thread.
+     * @param operation the operation.
+     */
+    public void runWhenConnected(Runnable operation) {
+        if (isConnected()) {
+            operation.run();
+            return;
+        }
+
+        mPendingOperations.add(operation);
+        prewarm();
+    }
+
     public <T> T getModule(Class<T> clazz) {
         return (T) mModules.get(clazz);
     }
@@ -302,20 +557,64 @@ public class GacFragment extends Fragment implements
      * @param <L> type parameter of 'M' class.
      */
     public <M extends GacModule<L>, L> void enableModule(Class<M> clazz, L listener) {
-        try {
-            M module = clazz.newInstance();
-            module.setFragment(this);
-            module.setListener(listener);
-            mModules.put(clazz, module);
-        } catch (java.lang.InstantiationException e) {
-            Log.e(TAG, "enableModule:InstantiationException", e);
-        } catch (IllegalAccessException e) {
-            Log.e(TAG, "enableModule:IllegalAccessExeption", e);
+        // A retained module only needs the listener from the re-created Activity
+        GacModule<L> existing = mModules.get(clazz);
+        if (existing != null) {
+            existing.setListener(listener);
+        } else {
+            try {
+                M module = clazz.newInstance();
+                module.setFragment(this);
+                module.setListener(listener);
+                addResultRoutes(module);
+                mModules.put(clazz, module);
+            } catch (java.lang.InstantiationException e) {
+                Log.e(TAG, "enableModule:InstantiationException", e);
+            } catch (IllegalAccessException e) {
+                Log.e(TAG, "enableModule:IllegalAccessExeption", e);
+            }
         }
 
+        // Inside a batch, wait for commitModules() to rebuild
+        if (mModuleBatchDepth > 0) {
+            mModulesChanged = true;
+            return;
+        }
+
+        rebuildGoogleApiClient();
+    }
+
+    /**
+     * Start enabling a batch of modules. The GoogleApiClient is not rebuilt by
+     * {@link #enableModule(Class, Object)} until the matching {@link #commitModules()}.
+     * Batches may be nested. Call {@link #commitModules()} in a {@code finally} block, since
+     * enabling a module can throw.
+     */
+    public void beginModules() {
+        mModuleBatchDepth++;
+    }
+
+    /**
+     * Finish a batch started with {@link #beginModules()}, rebuilding the GoogleApiClient once
+     * if any module was enabled. If the APIs and scopes did not change the existing client,
+     * and its connection, is kept.
+     */
+    public void commitModules() {
+        if (mModuleBatchDepth == 0) {
+            throw new IllegalStateException("commitModules() without beginModules()");
+        }
+
+        mModuleBatchDepth--;
+        if (mModuleBatchDepth == 0 && mModulesChanged) {
+            mModulesChanged = false;
+            rebuildGoogleApiClient();
+        }
+    }
+
+    private void rebuildGoogleApiClient() {
         // Re-build GoogleApiClient, if necessary
-        if (getActivity() != null) {
-            Log.d(TAG, "enableModule: rebuilding GoogleApiClient");
+        if (getActivity() != null && (!mLazyConnect || mGoogleApiClient != null)) {
+            Log.d(TAG, "rebuildGoogleApiClient: modules changed");
             buildGoogleApiClient();
         }
     }
@@ -21,6 +21,7 @@ import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.Api;
 import com.google.android.gms.common.api.Scope;
 
+import java.util.Collections;
 import java.util.List;
 
 import pub.devrel.easygoogle.Google;
@@ -51,6 +52,15 @@ public abstract class GacModule<T> {
 
     public abstract List<Scope> getScopes();
 
+    /**
+     * Request codes this module starts activities with, so that {@link GacFragment} can route
+     * their results straight to it. Modules that declare none are offered every result.
+     * @return the request codes, each must fit in 16 bits and be unique among enabled modules.
+     */
+    public List<Integer> getRequestCodes() {
+        return Collections.emptyList();
+    }
+
     public Api.ApiOptions.HasOptions getOptionsFor(Api<? extends Api.ApiOptions> api) {
         return null;
     }
@@ -0,0 +1,218 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gac;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import pub.devrel.easygoogle.EasyGoogleMetrics;
+
+/**
+ * Process-wide owner of GoogleApiClients, so that Activities using the same APIs share one
+ * connection instead of each connecting and disconnecting their own. There is one client per
+ * distinct set of APIs, API options and scopes. Each started {@link GacFragment} holds a
+ * {@link Lease} on its client; the client connects when the first lease is acquired and only
+ * disconnects when the last lease is released. Because the next Activity starts before the
+ * previous one stops, moving between Activities keeps the connection open. To also survive
+ * rotations and quick app switches, where the stop comes first, a client can be kept connected
+ * for a linger period after its last lease is released, see {@link #setLingerMs(long)}. Once a
+ * client disconnects it is forgotten, so clients for APIs that are no longer used do not
+ * accumulate; leasing it again makes it the shared client for its key once more.
+ *
+ * Clients are built with the application Context and have no permanent callbacks, so they do
+ * not hold on to any Activity. All methods must be called on the main thread.
+ */
+public class GoogleApiClientManager {
+
+    private static final String TAG = "GoogleApiClientManager";
+
+    private static final GoogleApiClientManager sInstance = new GoogleApiClientManager();
+
+    private final Map<Object, GoogleApiClient> mClients = new HashMap<>();
+    private final Map<GoogleApiClient, Integer> mLeaseCounts = new IdentityHashMap<>();
+
+    // Disconnects waiting for the linger period to elapse, by client
+    private final Map<GoogleApiClient, Runnable> mPendingDisconnects = new IdentityHashMap<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private long mLingerMs;
+
+    /**
+     * A reference to a connected (or connecting) client, see
+     * {@link #acquire(Object, GoogleApiClient)}.
+     */
+    public class Lease {
+
+        private final Object mKey;
+        private final GoogleApiClient mClient;
+        private boolean mReleased;
+
+        private Lease(Object key, GoogleApiClient client) {
+            mKey = key;
+            mClient = client;
+        }
+
+        public GoogleApiClient getClient() {
+            return mClient;
+        }
+
+        /**
+         * Give up this lease. The client is disconnected if this was the last lease on it.
+         * Releasing a lease more than once has no effect.
+         */
+        public void release() {
+            if (!mReleased) {
+                mReleased = true;
+                GoogleApiClientManager.this.release(mKey, mClient);
+            }
+        }
+    }
+
+    public static GoogleApiClientManager getInstance() {
+        return sInstance;
+    }
+
+    private GoogleApiClientManager() {}
+
+    /**
+     * Keep clients connected for a while after their last lease is released. If a lease is
+     * acquired again within the period, no reconnect (or silent sign-in round-trip) is needed.
+     * Reconnects avoided this way are counted as
+     * {@link EasyGoogleMetrics#GAC_RECONNECTS_AVOIDED}.
+     * @param lingerMs time to stay connected in milliseconds, 0 (the default) to disconnect
+     *                 immediately.
+     */
+    public synchronized void setLingerMs(long lingerMs) {
+        mLingerMs = lingerMs;
+    }
+
+    public synchronized long getLingerMs() {
+        return mLingerMs;
+    }
+
+    /**
+     * Get the client for a set of APIs and scopes, building it if there is none yet.
+     * @param key identifies the APIs, API options and scopes, equal keys share a client.
+     * @param builder a configured builder, only used if no client exists for {@code key}.
+     * @return the shared client.
+     */
+    public synchronized GoogleApiClient getClient(Object key, GoogleApiClient.Builder builder) {
+        GoogleApiClient client = mClients.get(key);
+        if (client == null) {
+            Log.d(TAG, "getClient: building client for " + key);
+            client = GacFragment.createClient(builder);
+            mClients.put(key, client);
+        }
+
+        return client;
+    }
+
+    /**
+     * Take a lease on a client, connecting it if it is not already connected or connecting.
+     * @param key the key the client was obtained with.
+     * @param client a client from {@link #getClient(Object, GoogleApiClient.Builder)}.
+     * @return the lease, which must be released when the connection is no longer needed.
+     */
+    public synchronized Lease acquire(Object key, GoogleApiClient client) {
+        // Share the client again if it was forgotten after disconnecting
+        if (!mClients.containsKey(key)) {
+            mClients.put(key, client);
+        }
+
+        Integer count = mLeaseCounts.get(client);
+        mLeaseCounts.put(client, count == null ? 1 : count + 1);
+
+        // Still lingering from the last release, keep the connection
+        Runnable disconnect = mPendingDisconnects.remove(client);
+        if (disconnect != null) {
+            Log.d(TAG, "acquire: reusing lingering connection");
+            mHandler.removeCallbacks(disconnect);
+            EasyGoogleMetrics.increment(EasyGoogleMetrics.GAC_RECONNECTS_AVOIDED);
+        }
+
+        if (!client.isConnected() && !client.isConnecting()) {
+            client.connect();
+        }
+
+        return new Lease(key, client);
+    }
+
+    /**
+     * @param client a client from {@link #getClient(Object, GoogleApiClient.Builder)}.
+     * @return the number of unreleased leases on the client.
+     */
+    public synchronized int getLeaseCount(GoogleApiClient client) {
+        Integer count = mLeaseCounts.get(client);
+        return count == null ? 0 : count;
+    }
+
+    private synchronized void release(final Object key, final GoogleApiClient client) {
+        Integer count = mLeaseCounts.get(client);
+        if (count == null) {
+            return;
+        }
+
+        if (count > 1) {
+            mLeaseCounts.put(client, count - 1);
+            return;
+        }
+
+        mLeaseCounts.remove(client);
+        if (mLingerMs <= 0) {
+            Log.d(TAG, "release: last lease released, disconnecting");
+            disconnect(key, client);
+            return;
+        }
+
+        Log.d(TAG, "release: last lease released, disconnecting in " + mLingerMs + "ms");
+        Runnable disconnect = new Runnable() {
+            @Override
+            public void run() {
+                lingerExpired(key, client, this);
+            }
+        };
+        mPendingDisconnects.put(client, disconnect);
+        mHandler.postDelayed(disconnect, mLingerMs);
+    }
+
+    private synchronized void lingerExpired(Object key, GoogleApiClient client,
+                                            Runnable disconnect) {
+        // Ignore if a lease was acquired in the meantime
+        if (mPendingDisconnects.get(client) != disconnect) {
+            return;
+        }
+
+        Log.d(TAG, "lingerExpired: disconnecting");
+        mPendingDisconnects.remove(client);
+        EasyGoogleMetrics.increment(EasyGoogleMetrics.GAC_LINGER_DISCONNECTS);
+        disconnect(key, client);
+    }
+
+    private void disconnect(Object key, GoogleApiClient client) {
+        client.disconnect();
+
+        // Forget the client, unless it has already been replaced by a newer one for the key
+        if (mClients.get(key) == client) {
+            mClients.remove(key);
+        }
+    }
+}
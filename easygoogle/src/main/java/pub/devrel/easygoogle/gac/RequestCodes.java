@@ -0,0 +1,60 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gac;
+
+/**
+ * Request code arithmetic used by {@link GacFragment}. The support library routes an activity
+ * result back to a Fragment using the upper 16 bits of the request code, which hold the
+ * Fragment's index plus one, so only the lower 16 bits are available to callers.
+ */
+public class RequestCodes {
+
+    private static final int FRAGMENT_SHIFT = 16;
+    private static final int REQUEST_MASK = 0xffff;
+
+    private RequestCodes() {}
+
+    /**
+     * Tag a request code with a Fragment index.
+     * @param requestCode the original request code, must fit in 16 bits.
+     * @param fragmentIndex the Fragment's index in its FragmentManager.
+     * @return the masked request code.
+     */
+    public static int mask(int requestCode, int fragmentIndex) {
+        if (!isValid(requestCode)) {
+            throw new IllegalArgumentException("Can only use lower 16 bits for requestCode");
+        }
+
+        return requestCode + ((fragmentIndex + 1) << FRAGMENT_SHIFT);
+    }
+
+    /**
+     * @param requestCode a request code.
+     * @return true if the request code fits in the lower 16 bits and can be masked.
+     */
+    public static boolean isValid(int requestCode) {
+        return (requestCode & ~REQUEST_MASK) == 0;
+    }
+
+    /**
+     * Remove the Fragment index from a request code.
+     * @param maskedCode a request code produced by {@link #mask(int, int)}.
+     * @return the original request code.
+     */
+    public static int unmask(int maskedCode) {
+        return maskedCode & REQUEST_MASK;
+    }
+}
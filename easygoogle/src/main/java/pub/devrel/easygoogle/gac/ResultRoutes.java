@@ -0,0 +1,113 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Routing table from request codes to the target that declared them, used by
+ * {@link GacFragment} to deliver activity results. Request codes are kept in a sorted array and
+ * found with a binary search, without boxing. Targets that declare no request codes are kept
+ * separately and offered every unrouted result. This class has no Android dependencies.
+ * @param <T> the target type, for example a {@link GacModule}.
+ */
+class ResultRoutes<T> {
+
+    private int[] mRequestCodes = new int[8];
+    private Object[] mTargets = new Object[8];
+    private int mSize;
+
+    private final List<T> mUnrouted = new ArrayList<>();
+
+    /**
+     * Route a target's request codes to it. Nothing is added if any request code is invalid.
+     * @param target the target that starts activities with the request codes.
+     * @param requestCodes the request codes, the target is added to {@link #getUnrouted()} if
+     *                     empty.
+     * @throws IllegalArgumentException if a request code does not fit in 16 bits.
+     * @throws IllegalStateException if a request code is already routed to another target.
+     */
+    void add(T target, List<Integer> requestCodes) {
+        if (requestCodes.isEmpty()) {
+            mUnrouted.add(target);
+            return;
+        }
+
+        for (int requestCode : requestCodes) {
+            if (!RequestCodes.isValid(requestCode)) {
+                throw new IllegalArgumentException("Can only use lower 16 bits for requestCode");
+            }
+
+            T existing = get(requestCode);
+            if (existing != null && existing != target) {
+                throw new IllegalStateException("Request code " + requestCode + " used by both "
+                        + existing.getClass().getSimpleName() + " and "
+                        + target.getClass().getSimpleName());
+            }
+        }
+
+        for (int requestCode : requestCodes) {
+            put(requestCode, target);
+        }
+    }
+
+    /**
+     * @param requestCode an unmasked request code.
+     * @return the target the request code is routed to, or null if none.
+     */
+    @SuppressWarnings("unchecked")
+    T get(int requestCode) {
+        int index = Arrays.binarySearch(mRequestCodes, 0, mSize, requestCode);
+        return index >= 0 ? (T) mTargets[index] : null;
+    }
+
+    /**
+     * @return targets that declared no request codes, in the order they were added.
+     */
+    List<T> getUnrouted() {
+        return Collections.unmodifiableList(mUnrouted);
+    }
+
+    /**
+     * @return the number of routed request codes.
+     */
+    int size() {
+        return mSize;
+    }
+
+    private void put(int requestCode, T target) {
+        int index = Arrays.binarySearch(mRequestCodes, 0, mSize, requestCode);
+        if (index >= 0) {
+            mTargets[index] = target;
+            return;
+        }
+
+        index = ~index;
+        if (mSize == mRequestCodes.length) {
+            mRequestCodes = Arrays.copyOf(mRequestCodes, mSize * 2);
+            mTargets = Arrays.copyOf(mTargets, mSize * 2);
+        }
+
+        System.arraycopy(mRequestCodes, index, mRequestCodes, index + 1, mSize - index);
+        System.arraycopy(mTargets, index, mTargets, index + 1, mSize - index);
+        mRequestCodes[index] = requestCode;
+        mTargets[index] = target;
+        mSize++;
+    }
+}
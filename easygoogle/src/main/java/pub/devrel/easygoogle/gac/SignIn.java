@@ -17,6 +17,7 @@ package pub.devrel.easygoogle.gac;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
@@ -27,7 +28,7 @@ import com.google.android.gms.auth.api.signin.GoogleSignInOptions;
 import com.google.android.gms.auth.api.signin.GoogleSignInResult;
 import com.google.android.gms.common.SignInButton;
 import com.google.android.gms.common.api.Api;
-import com.google.android.gms.common.api.OptionalPendingResult;
+import com.google.android.gms.common.api.CommonStatusCodes;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Scope;
 import com.google.android.gms.common.api.Status;
@@ -36,6 +37,8 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import pub.devrel.easygoogle.EasyGoogleMetrics;
+
 /**
  * Interface to the Google Sign In API, which can be used to determine the users identity. The
  * default scopes "profile" and "email" are used to return basic information about the user
@@ -77,6 +80,12 @@ public class SignIn extends GacModule<SignIn.SignInListener> {
     private static final String TAG = SignIn.class.getSimpleName();
     public static final int RC_SIGN_IN = 9001;
 
+    // Silent sign-in deferred until a lazily connected client connects
+    private boolean mSilentSignInPending;
+
+    // Most recent sign-in result, redelivered after a configuration change
+    private GoogleSignInResult mLastResult;
+
     public SignIn() {}
 
     @Override
@@ -107,24 +116,82 @@ public class SignIn extends GacModule<SignIn.SignInListener> {
         return Collections.emptyList();
     }
 
+    @Override
+    public List<Integer> getRequestCodes() {
+        return Collections.singletonList(RC_SIGN_IN);
+    }
+
     @Override
     public void onStart() {
         super.onStart();
 
+        // The re-created Activity gets the last result again, without asking Play services
+        if (getFragment().isChangingConfigurations() && mLastResult != null) {
+            deliverResult(mLastResult);
+            return;
+        }
+
+        // Don't connect a lazy client just for silent sign-in, wait for first use instead
+        if (getFragment().isLazyConnect() && !getFragment().hasGoogleApiClient()) {
+            mSilentSignInPending = true;
+            return;
+        }
+
+        silentSignIn();
+    }
+
+    @Override
+    public void onConnected() {
+        super.onConnected();
+
+        if (mSilentSignInPending) {
+            mSilentSignInPending = false;
+            silentSignIn();
+        }
+    }
+
+    private void silentSignIn() {
         // Kick off silent sign-in process
+        final long start = SystemClock.elapsedRealtime();
         Auth.GoogleSignInApi.silentSignIn(getFragment().getGoogleApiClient())
                 .setResultCallback(new ResultCallback<GoogleSignInResult>() {
                     @Override
                     public void onResult(GoogleSignInResult googleSignInResult) {
-                        if (googleSignInResult.isSuccess()) {
-                            getListener().onSignedIn(googleSignInResult.getSignInAccount());
-                        } else {
-                            getListener().onSignInFailed();
+                        EasyGoogleMetrics.recordLatency(EasyGoogleMetrics.SILENT_SIGN_IN_MS,
+                                SystemClock.elapsedRealtime() - start);
+                        if (!googleSignInResult.isSuccess()) {
+                            EasyGoogleMetrics.increment(
+                                    EasyGoogleMetrics.SILENT_SIGN_IN_FAILURES);
+                        }
+
+                        mLastResult = googleSignInResult;
+                        if (googleSignInResult.isSuccess()
+                                || isSignInRequired(googleSignInResult)) {
+                            AccountCache.getInstance().update(
+                                    googleSignInResult.getSignInAccount());
                         }
+                        deliverResult(googleSignInResult);
                     }
                 });
     }
 
+    /**
+     * Only this failure means the user is signed out, others (such as a network error) say
+     * nothing about the cached account.
+     */
+    private static boolean isSignInRequired(GoogleSignInResult result) {
+        Status status = result.getStatus();
+        return status != null && status.getStatusCode() == CommonStatusCodes.SIGN_IN_REQUIRED;
+    }
+
+    private void deliverResult(GoogleSignInResult result) {
+        if (result.isSuccess()) {
+            getListener().onSignedIn(result.getSignInAccount());
+        } else {
+            getListener().onSignInFailed();
+        }
+    }
+
     @Override
     public void onStop() {}
 
@@ -133,7 +200,11 @@ public class SignIn extends GacModule<SignIn.SignInListener> {
         if (requestCode == RC_SIGN_IN) {
             if (data != null) {
                 GoogleSignInResult gsr = Auth.GoogleSignInApi.getSignInResultFromIntent(data);
+                if (gsr != null) {
+                    mLastResult = gsr;
+                }
                 if (gsr != null && gsr.isSuccess()) {
+                    AccountCache.getInstance().update(gsr.getSignInAccount());
                     getListener().onSignedIn(gsr.getSignInAccount());
                 } else {
                     getListener().onSignInFailed();
@@ -174,25 +245,24 @@ public class SignIn extends GacModule<SignIn.SignInListener> {
     }
 
     /**
-     * Get the currently signed in user as a GoogleSignInAccount.
+     * Get the currently signed in user as a GoogleSignInAccount, from the most recent sign-in,
+     * silent sign-in or sign-out result. This never calls Play services, see
+     * {@link AccountCache}. This is non-null exactly when {@link #isSignedIn()} is true.
      * @return a {@link GoogleSignInAccount} or null.
      */
     public GoogleSignInAccount getCurrentUser() {
-        OptionalPendingResult<GoogleSignInResult> opr = Auth.GoogleSignInApi.silentSignIn(
-                getFragment().getGoogleApiClient());
-        if (opr.isDone()) {
-            return opr.get().getSignInAccount();
-        } else {
-            return null;
-        }
+        return AccountCache.getInstance().getAccount();
     }
 
     /**
-     * Convenience method to determine if a user is signed in (current user is not null).
+     * Convenience method to determine if a user is signed in, equivalent to
+     * {@code getCurrentUser() != null}. To know whether the user was signed in before the first
+     * result in this process arrives, use {@link AccountCache#isSignedIn()} with
+     * {@link AccountCache#setPersistent(Context, boolean)} enabled.
      * @return true if signed in, false otherwise.
      */
     public boolean isSignedIn() {
-        return (getCurrentUser() != null);
+        return getCurrentUser() != null;
     }
 
     /**
@@ -210,26 +280,29 @@ public class SignIn extends GacModule<SignIn.SignInListener> {
     /**
      * Initiate the sign out and disconnect process. Results are returned to the
      * {@link pub.devrel.easygoogle.gac.SignIn.SignInListener}. If the user is not already signed
-     * in or the sign out operation fails, no result will be returned.
+     * in or the sign out operation fails, no result will be returned. If the GoogleApiClient is
+     * not connected yet, sign out happens once it connects.
      */
     public void signOut() {
         Log.d(TAG, "signOut");
         final GacFragment fragment = getFragment();
-        if (!fragment.isConnected()) {
-            Log.w(TAG, "Can't sign out, not signed in!");
-            return;
-        }
-
-        Auth.GoogleSignInApi.revokeAccess(fragment.getGoogleApiClient()).setResultCallback(
-                new ResultCallback<Status>() {
-                    @Override
-                    public void onResult(Status status) {
-                        if (status.isSuccess()) {
-                            getListener().onSignedOut();
-                        } else {
-                            Log.w(TAG, "Could not sign out: " + status);
-                        }
-                    }
-                });
+        fragment.runWhenConnected(new Runnable() {
+            @Override
+            public void run() {
+                Auth.GoogleSignInApi.revokeAccess(fragment.getGoogleApiClient())
+                        .setResultCallback(new ResultCallback<Status>() {
+                            @Override
+                            public void onResult(Status status) {
+                                if (status.isSuccess()) {
+                                    mLastResult = null;
+                                    AccountCache.getInstance().update(null);
+                                    getListener().onSignedOut();
+                                } else {
+                                    Log.w(TAG, "Could not sign out: " + status);
+                                }
+                            }
+                        });
+            }
+        });
     }
 }
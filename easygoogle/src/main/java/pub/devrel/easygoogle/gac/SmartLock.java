@@ -98,6 +98,11 @@ public class SmartLock extends GacModule<SmartLock.SmartLockListener> {
         return Collections.emptyList();
     }
 
+    @Override
+    public List<Integer> getRequestCodes() {
+        return Arrays.asList(RC_READ, RC_SAVE);
+    }
+
     /**
      * Begin the process of retrieving a {@link Credential} for the device user. This can have
      * a few different results:
@@ -0,0 +1,177 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Byte-level helpers behind {@link BinaryMessageCodec} and the EasyGoogle GCM services: varints,
+ * length-prefixed frames, and the string fields of the binary message format. This class has no
+ * Android dependencies.
+ */
+final class BinaryFormat {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private BinaryFormat() {}
+
+    /**
+     * Concatenate several byte arrays into one, each prefixed with its length.
+     * @param frames the byte arrays.
+     * @return a single byte array that can be split again with {@link #unframe(byte[])}.
+     */
+    static byte[] frame(List<byte[]> frames) {
+        int size = 5;
+        for (byte[] frame : frames) {
+            size += 5 + frame.length;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        writeVarint(out, frames.size());
+        for (byte[] frame : frames) {
+            writeVarint(out, frame.length);
+            out.write(frame, 0, frame.length);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Split a byte array produced by {@link #frame(List)}.
+     * @param framed the framed data.
+     * @return the original byte arrays, in order.
+     */
+    static List<byte[]> unframe(byte[] framed) {
+        int[] pos = new int[]{0};
+        int count = readVarint(framed, pos);
+
+        List<byte[]> frames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = readVarint(framed, pos);
+            byte[] frame = new byte[length];
+            System.arraycopy(framed, pos[0], frame, 0, length);
+            pos[0] += length;
+            frames.add(frame);
+        }
+
+        return frames;
+    }
+
+    /**
+     * Write one field of the binary message format: a varint tag holding the key length and a
+     * null flag, the UTF-8 key, and (unless null) a varint value length and the UTF-8 value.
+     * The fields must be preceded by a varint field count.
+     */
+    static void writeField(ByteArrayOutputStream out, String key, String value) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        writeVarint(out, (keyBytes.length << 1) | (value == null ? 0 : 1));
+        out.write(keyBytes, 0, keyBytes.length);
+
+        if (value != null) {
+            byte[] valueBytes = value.getBytes(UTF_8);
+            writeVarint(out, valueBytes.length);
+            out.write(valueBytes, 0, valueBytes.length);
+        }
+    }
+
+    /**
+     * Read a single field of a message written with {@link #writeField}, skipping over other
+     * values without decoding them.
+     * @param encoded the encoded message.
+     * @param key the field to read.
+     * @return the value, or null if not present.
+     */
+    static String getString(byte[] encoded, String key) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+
+        int[] pos = new int[]{0};
+        int count = readVarint(encoded, pos);
+        for (int i = 0; i < count; i++) {
+            int tag = readVarint(encoded, pos);
+            int keyLength = tag >>> 1;
+            boolean match = regionMatches(encoded, pos[0], keyBytes, keyLength);
+            pos[0] += keyLength;
+
+            if ((tag & 1) == 0) {
+                if (match) {
+                    return null;
+                }
+                continue;
+            }
+
+            int valueLength = readVarint(encoded, pos);
+            if (match) {
+                return new String(encoded, pos[0], valueLength, UTF_8);
+            }
+            pos[0] += valueLength;
+        }
+
+        return null;
+    }
+
+    /**
+     * Compare a key in the encoded data to {@code key} in place, without copying it out.
+     */
+    private static boolean regionMatches(byte[] encoded, int offset, byte[] key, int length) {
+        if (length != key.length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (encoded[offset + i] != key[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Write a non-negative int as a base-128 varint.
+     */
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Read a base-128 varint.
+     * @param in the data to read from.
+     * @param pos single-element array holding the read position, advanced past the varint.
+     * @return the value.
+     */
+    static int readVarint(byte[] in, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = in[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 28) {
+                throw new IllegalArgumentException("Malformed varint");
+            }
+        }
+    }
+}
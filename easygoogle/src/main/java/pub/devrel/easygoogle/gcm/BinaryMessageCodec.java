@@ -0,0 +1,72 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.os.Bundle;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Default {@link MessageCodec}. GCM message data is a flat map of strings, so each field is
+ * encoded as a varint tag holding the key length and a null flag, the UTF-8 key, and (unless
+ * null) a varint value length followed by the UTF-8 value. Individual fields can be read with
+ * {@link #getString(byte[], String)} by skipping over other values without decoding them.
+ */
+public class BinaryMessageCodec extends MessageCodec {
+
+    public BinaryMessageCodec() {}
+
+    @Override
+    public byte[] encode(Bundle data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        BinaryFormat.writeVarint(out, data.size());
+        for (String key : data.keySet()) {
+            Object value = data.get(key);
+            BinaryFormat.writeField(out, key, value == null ? null : String.valueOf(value));
+        }
+
+        return out.toByteArray();
+    }
+
+    @Override
+    public Bundle decode(byte[] encoded) {
+        Bundle data = new Bundle();
+
+        int[] pos = new int[]{0};
+        int count = BinaryFormat.readVarint(encoded, pos);
+        for (int i = 0; i < count; i++) {
+            int tag = BinaryFormat.readVarint(encoded, pos);
+            int keyLength = tag >>> 1;
+            String key = new String(encoded, pos[0], keyLength, BinaryFormat.UTF_8);
+            pos[0] += keyLength;
+
+            String value = null;
+            if ((tag & 1) != 0) {
+                int valueLength = BinaryFormat.readVarint(encoded, pos);
+                value = new String(encoded, pos[0], valueLength, BinaryFormat.UTF_8);
+                pos[0] += valueLength;
+            }
+            data.putString(key, value);
+        }
+
+        return data;
+    }
+
+    @Override
+    public String getString(byte[] encoded, String key) {
+        return BinaryFormat.getString(encoded, key);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates IDs that are unique across process restarts by reserving them from durable storage
+ * in blocks (a "hi/lo" sequence): the end of the current block is saved before any ID in it is
+ * handed out, so after a crash allocation resumes past the block and an ID is never reused.
+ * Within a block, allocation is a single atomic increment with no I/O. This class has no
+ * Android dependencies, see {@link MessageIdAllocator} for the SharedPreferences-backed
+ * allocator.
+ */
+class BlockIdAllocator {
+
+    private final CeilingStore mStore;
+    private final int mBlockSize;
+    private final AtomicLong mLast;
+
+    // Highest ID that has been durably reserved
+    private volatile long mCeiling;
+
+    /**
+     * Durable storage for the end of the reserved block.
+     */
+    interface CeilingStore {
+
+        /**
+         * @return the last saved ceiling, or 0 if none.
+         */
+        long load();
+
+        /**
+         * Durably save the ceiling before returning.
+         * @return true if the ceiling was saved.
+         */
+        boolean save(long ceiling);
+    }
+
+    /**
+     * @param store durable storage for the reserved block.
+     * @param blockSize number of IDs reserved by each save.
+     */
+    BlockIdAllocator(CeilingStore store, int blockSize) {
+        mStore = store;
+        mBlockSize = blockSize;
+        mCeiling = store.load();
+        mLast = new AtomicLong(mCeiling);
+    }
+
+    /**
+     * Allocate the next ID. This calls {@link CeilingStore#save(long)} once every
+     * {@code blockSize} calls.
+     * @return a positive ID that has never been returned before for this store.
+     * @throws IllegalStateException if a block could not be reserved.
+     */
+    long next() {
+        long id = mLast.incrementAndGet();
+        if (id <= mCeiling) {
+            return id;
+        }
+
+        synchronized (this) {
+            while (id > mCeiling) {
+                reserveBlock();
+            }
+        }
+
+        return id;
+    }
+
+    private void reserveBlock() {
+        long ceiling = mCeiling + mBlockSize;
+        if (!mStore.save(ceiling)) {
+            throw new IllegalStateException("Could not reserve IDs");
+        }
+
+        mCeiling = ceiling;
+    }
+}
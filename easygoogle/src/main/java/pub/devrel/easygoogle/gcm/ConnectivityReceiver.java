@@ -0,0 +1,46 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * Receiver that restarts {@link MessageSenderService} when the device regains connectivity.
+ * This receiver is disabled in the manifest and is only enabled by MessageSenderService while
+ * the {@link OutboundQueue} has messages waiting for a retry.
+ */
+public class ConnectivityReceiver extends BroadcastReceiver {
+
+    private static final String TAG = "ConnectivityReceiver";
+
+    public ConnectivityReceiver() {}
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = cm.getActiveNetworkInfo();
+        if (network != null && network.isConnected()) {
+            Log.d(TAG, "Connected, draining outbound queue.");
+            context.startService(new Intent(context, MessageSenderService.class));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the most recently seen messages so that redelivered messages can be dropped.
+ * Messages are identified by their GCM message ID, see {@link GCMUtils#getMessageId}; messages
+ * without one are never treated as duplicates, since a repeated payload may be a legitimate new
+ * message. Only a 64-bit hash of each ID is kept and the number of entries is bounded, so the
+ * memory footprint is fixed. Optionally, entries are appended to a {@link Journal} so that
+ * duplicates are also caught across process restarts.
+ *
+ * This class has no Android dependencies, {@link FileJournal} persists entries to a file.
+ */
+public class DuplicateFilter {
+
+    // Key added by GCM to every downstream message
+    public static final String KEY_MESSAGE_ID = "google.message_id";
+
+    private final int mCapacity;
+    private final Journal mJournal;
+    private final LinkedHashMap<Long, Boolean> mSeen;
+
+    // Entries written to the journal since it was last rewritten
+    private int mAppended;
+
+    /**
+     * Durable storage for seen entries. Failures should be logged and otherwise ignored, the
+     * filter keeps working in memory.
+     */
+    public interface Journal {
+
+        /**
+         * @return all entries saved so far, oldest first.
+         */
+        List<Long> load();
+
+        /**
+         * Save a new entry.
+         */
+        void append(long hash);
+
+        /**
+         * Replace all saved entries, to drop those that were evicted.
+         * @param hashes the live entries, oldest first.
+         */
+        void rewrite(Iterable<Long> hashes);
+    }
+
+    /**
+     * Create a filter.
+     * @param capacity maximum number of messages to remember.
+     * @param journal storage in which to persist seen messages, or null to keep them in memory
+     *                only.
+     */
+    public DuplicateFilter(final int capacity, Journal journal) {
+        mCapacity = capacity;
+        mJournal = journal;
+        mSeen = new LinkedHashMap<Long, Boolean>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        if (mJournal != null) {
+            for (Long hash : mJournal.load()) {
+                mSeen.put(hash, Boolean.TRUE);
+                mAppended++;
+            }
+        }
+    }
+
+    /**
+     * Check whether a message has been seen before, and record it as seen.
+     * @param messageId the message ID from {@link GCMUtils#getMessageId}, may be null.
+     * @return true if the message was already seen and should be dropped, always false for a
+     * message without an ID.
+     */
+    public synchronized boolean isDuplicate(String messageId) {
+        if (messageId == null) {
+            return false;
+        }
+
+        long hash = hash(messageId);
+        if (mSeen.get(hash) != null) {
+            // The lookup also refreshes the entry, so frequent duplicates are not evicted
+            return true;
+        }
+
+        mSeen.put(hash, Boolean.TRUE);
+        if (mJournal != null) {
+            append(hash);
+        }
+
+        return false;
+    }
+
+    /**
+     * 64-bit FNV-1a hash, so that a key can be stored in a single long.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    private void append(long hash) {
+        // Rewrite the journal with only live entries once it grows well past capacity
+        if (mAppended >= 2 * mCapacity) {
+            mJournal.rewrite(mSeen.keySet());
+            mAppended = mSeen.size();
+            return;
+        }
+
+        mJournal.append(hash);
+        mAppended++;
+    }
+}
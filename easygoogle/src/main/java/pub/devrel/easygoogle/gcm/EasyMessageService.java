@@ -21,6 +21,9 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.support.v4.content.LocalBroadcastManager;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import pub.devrel.easygoogle.R;
 
 
@@ -42,9 +45,15 @@ public abstract class EasyMessageService extends IntentService {
     public static final String EXTRA_TOKEN = "token";
     public static final String EXTRA_ACTION = "action";
     public static final String EXTRA_FROM = "from";
+    public static final String EXTRA_PAYLOAD = "payload";
+    public static final String EXTRA_RECEIVED_AT = "received_at";
 
     public static final String ACTION_REGISTER = "register";
 
+    // Time the message(s) being handled were received, see SystemClock.elapsedRealtime(), 0 if
+    // unknown
+    private long mReceivedAt;
+
     public EasyMessageService() {
         super(TAG);
     }
@@ -56,6 +65,31 @@ public abstract class EasyMessageService extends IntentService {
      */
     public abstract void onMessageReceived(String from, Bundle data);
 
+    /**
+     * Called when the applications receives a new GCM message. The default implementation
+     * calls {@link #onMessageReceived(String, Bundle)}. Override this to read only the fields
+     * you need with {@link ReceivedMessage#getString(String)}, the message data is then not
+     * decoded in full.
+     * @param message the received message.
+     */
+    public void onMessageReceived(ReceivedMessage message) {
+        onMessageReceived(message.getFrom(), message.getData());
+    }
+
+    /**
+     * Called when the application receives a batch of GCM messages. Batches are only delivered
+     * when batching is enabled with {@link MessagingOptions.Builder#setBatching(long, int, int)}.
+     * The default implementation calls {@link #onMessageReceived(ReceivedMessage)} for each
+     * message, in order of arrival, so messages are only decoded if that reads their data. The
+     * receive time of every message in a batch is that of the batch's first message.
+     * @param messages the received messages, in order of arrival.
+     */
+    public void onMessagesReceived(List<ReceivedMessage> messages) {
+        for (ReceivedMessage message : messages) {
+            onMessageReceived(message);
+        }
+    }
+
     /**
      * Called when the application gets a new GCM ID Token.  This should be sent to your server
      * (if you have one) using an upstream GCM. See {@link #sendRegistrationMessage(String, String)}.
@@ -66,6 +100,7 @@ public abstract class EasyMessageService extends IntentService {
     @Override
     public void onHandleIntent(Intent intent) {
         String action = intent.getAction();
+        mReceivedAt = intent.getLongExtra(EXTRA_RECEIVED_AT, 0);
         if (getString(R.string.action_new_token).equals(action)) {
             String token = intent.getStringExtra(EXTRA_TOKEN);
 
@@ -74,27 +109,67 @@ public abstract class EasyMessageService extends IntentService {
 
         if (getString(R.string.action_new_message).equals(action)) {
             String from = intent.getStringExtra(EXTRA_FROM);
-            Bundle data = intent.getExtras();
-            data.remove(EXTRA_FROM);
+            byte[] payload = intent.getByteArrayExtra(EXTRA_PAYLOAD);
+            if (payload != null) {
+                // Decoded only when the data is read
+                onMessageReceived(new ReceivedMessage(from, MessagingOptions.load(this).getCodec(),
+                        payload, mReceivedAt));
+            } else {
+                Bundle data = intent.getExtras();
+                data.remove(EXTRA_FROM);
+                onMessageReceived(new ReceivedMessage(from, data, mReceivedAt));
+            }
+        }
 
-            onMessageReceived(from, data);
+        if (getString(R.string.action_new_messages).equals(action)) {
+            // Frames alternate between sender and encoded data, see MessageBatcher. The batch
+            // carries the receive time of its first message.
+            MessageCodec codec = MessagingOptions.load(this).getCodec();
+            List<byte[]> frames = BinaryFormat.unframe(
+                    intent.getByteArrayExtra(MessageBatcher.EXTRA_MESSAGES));
+            List<ReceivedMessage> messages = new ArrayList<>(frames.size() / 2);
+            for (int i = 0; i + 1 < frames.size(); i += 2) {
+                String from = new String(frames.get(i), MessageBatcher.UTF_8);
+                messages.add(new ReceivedMessage(from, codec, frames.get(i + 1), mReceivedAt));
+            }
+
+            onMessagesReceived(messages);
         }
     }
 
     /**
      * Forward message data to any active listeners. A listener is a running FragmentActivity that
-     * has enabled messaging on a {@link pub.devrel.easygoogle.Google} object.  If no such Activity
-     * is in the foreground, this is a no-op.
+     * has enabled messaging on a {@link pub.devrel.easygoogle.Google} object, or any listener
+     * registered with the {@link MessageBus}.  If no such listener exists, this is a no-op unless
+     * the {@link MessageInbox} is enabled, in which case the message is delivered when the next
+     * listener starts.
      * @param from the message sender's ID.
      * @param data arbitrary message data (determined by sender).
      * @return true if there is a running listener to receive the message, false otherwise.
      */
     public boolean forwardToListener(String from, Bundle data) {
+        // Deliver directly to listeners in this process when possible
+        MessageInbox inbox = MessageInbox.get(this, MessagingOptions.load(this));
+        if (MessageBus.getInstance().post(from, data, mReceivedAt, inbox)) {
+            return true;
+        }
+
+        // Fall back to a local broadcast
         Intent msg = new Intent(MessagingFragment.MESSAGE_RECEIVED);
         msg.putExtra(MessagingFragment.MESSAGE_ARG, data);
         msg.putExtra(MessagingFragment.MESSAGE_FROM_FIELD, from);
+        msg.putExtra(MessagingFragment.MESSAGE_RECEIVED_AT_FIELD, mReceivedAt);
+
+        if (LocalBroadcastManager.getInstance(this).sendBroadcast(msg)) {
+            return true;
+        }
+
+        // Nobody is listening, keep the message for the next listener if enabled
+        if (inbox != null) {
+            inbox.add(from, data);
+        }
 
-        return LocalBroadcastManager.getInstance(this).sendBroadcast(msg);
+        return false;
     }
 
     /**
@@ -0,0 +1,119 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link DuplicateFilter.Journal} that appends entries to a file as 64-bit values. Rewrites go
+ * through an {@link AtomicFile}, so a crash during a rewrite leaves the previous contents.
+ */
+class FileJournal implements DuplicateFilter.Journal {
+
+    private static final String TAG = "FileJournal";
+
+    private final AtomicFile mFile;
+    private DataOutputStream mOut;
+
+    FileJournal(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    @Override
+    public List<Long> load() {
+        List<Long> hashes = new ArrayList<>();
+        DataInputStream in = null;
+        try {
+            // Also restores the previous contents if a rewrite was interrupted
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            while (true) {
+                hashes.add(in.readLong());
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing persisted yet
+        } catch (EOFException e) {
+            // Done
+        } catch (IOException e) {
+            Log.w(TAG, "Could not load seen messages", e);
+        } finally {
+            closeQuietly(in);
+        }
+
+        return hashes;
+    }
+
+    @Override
+    public void append(long hash) {
+        try {
+            if (mOut == null) {
+                mOut = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(mFile.getBaseFile(), true)));
+            }
+            mOut.writeLong(hash);
+            mOut.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not persist seen message", e);
+            closeQuietly(mOut);
+            mOut = null;
+        }
+    }
+
+    @Override
+    public void rewrite(Iterable<Long> hashes) {
+        closeQuietly(mOut);
+        mOut = null;
+
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            for (Long hash : hashes) {
+                data.writeLong(hash);
+            }
+            data.flush();
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not rewrite seen messages", e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -20,10 +20,19 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+
+import pub.devrel.easygoogle.EasyGoogleMetrics;
 
 /**
  * Utilities used by EasyGoogle GCM classes.
@@ -33,16 +42,73 @@ public class GCMUtils {
     private static final String TAG = "GCMUtils";
     public static final String PREF_KEY_GCM_PERMISSION = "gcm_permission";
 
+    private static final long INITIAL_BACKOFF_MS = 5 * 1000;
+    private static final long MAX_BACKOFF_MS = 60 * 60 * 1000;
+
+    private static final Random sRandom = new Random();
+
+    /**
+     * Get the GCM message ID identifying a downstream message.
+     * @param data message data.
+     * @return the message ID, or null if the message has none.
+     */
+    public static String getMessageId(Bundle data) {
+        return data.getString(DuplicateFilter.KEY_MESSAGE_ID);
+    }
+
+    /**
+     * Record {@link EasyGoogleMetrics#GCM_RECEIVE_TO_LISTENER_MS} for a message that is about to
+     * be handed to a listener.
+     * @param receivedAt time the message was received, see
+     *                   {@link SystemClock#elapsedRealtime()}, or 0 if unknown.
+     */
+    static void recordListenerLatency(long receivedAt) {
+        if (receivedAt != 0) {
+            EasyGoogleMetrics.recordLatency(EasyGoogleMetrics.GCM_RECEIVE_TO_LISTENER_MS,
+                    SystemClock.elapsedRealtime() - receivedAt);
+        }
+    }
+
     /**
      * Find all services in the AndroidManifest with a given permission. This is useful when
      * you want to start a particular service but don't have enough information to build
      * an explicit intent (implicit intents stopped working in Android 5.0).
+     *
+     * This method always queries the {@code PackageManager}, prefer
+     * {@link ServiceRegistry#getServices(String)} on hot paths.
      * @param context calling Context.
      * @param permission the permission the service should have declared in the
      *                   {@code android:permission} field.
      * @return a list of {@code ComponentName} objects that can be used to create Intents.
      */
     public static List<ComponentName> findServices(Context context, String permission) {
+        String packageName = context.getPackageName();
+
+        List<String> permissions = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        ServiceInfo[] services = getServices(context);
+        if (services != null) {
+            for (ServiceInfo service : services) {
+                permissions.add(service.permission);
+                names.add(service.name);
+            }
+        }
+
+        // Get components that have the permission
+        List<ComponentName> results = new ArrayList<>();
+        for (String name : ServiceIndex.filter(permissions, names, permission)) {
+            results.add(new ComponentName(packageName, name));
+        }
+
+        return results;
+    }
+
+    /**
+     * Get all services declared in the calling package's AndroidManifest.
+     * @param context calling Context.
+     * @return the declared services, may be null if the package declares none.
+     */
+    static ServiceInfo[] getServices(Context context) {
         PackageManager packageManager = context.getPackageManager();
         String packageName = context.getPackageName();
         Log.d(TAG, "Checking package: " + packageName);
@@ -55,18 +121,56 @@ public class GCMUtils {
             throw new IllegalStateException("Could not get services for package " + packageName);
         }
 
-        // Get components that have the permission
-        ArrayList<ComponentName> results = new ArrayList<>();
-        ServiceInfo[] services = servicesInfo.services;
-        if (services != null) {
-            for (ServiceInfo service : services) {
-                if (permission.equals(service.permission)) {
-                    ComponentName cn = new ComponentName(packageName, service.name);
-                    results.add(cn);
+        return servicesInfo.services;
+    }
+
+    /**
+     * Compute how long to wait before retrying a failed network operation, using exponential
+     * backoff with "equal jitter" so that many clients do not retry in lock-step.
+     * @param attempts number of failed attempts so far, at least 1.
+     * @return delay in milliseconds, between 2.5 seconds and one hour.
+     */
+    public static long getBackoffDelay(int attempts) {
+        long backoff = INITIAL_BACKOFF_MS << Math.max(0, Math.min(attempts - 1, 20));
+        backoff = Math.min(backoff, MAX_BACKOFF_MS);
+        return backoff / 2 + (long) (sRandom.nextDouble() * (backoff / 2));
+    }
+
+    /**
+     * Encode message data as a JSON object. All values are encoded as strings, as GCM does.
+     * @param data message data, may be null.
+     * @return the JSON string.
+     */
+    static String toJson(Bundle data) {
+        JSONObject json = new JSONObject();
+        if (data != null) {
+            try {
+                for (String key : data.keySet()) {
+                    json.put(key, String.valueOf(data.get(key)));
                 }
+            } catch (JSONException e) {
+                throw new IllegalArgumentException("Could not encode message data", e);
             }
         }
 
-        return results;
+        return json.toString();
+    }
+
+    /**
+     * Decode message data encoded by {@link #toJson(Bundle)}, adding the fields to a Bundle.
+     * @param encoded the JSON string.
+     * @param data the Bundle to add fields to.
+     * @return {@code data}, for chaining.
+     * @throws JSONException if {@code encoded} is not a JSON object.
+     */
+    static Bundle fromJson(String encoded, Bundle data) throws JSONException {
+        JSONObject json = new JSONObject(encoded);
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            data.putString(key, json.getString(key));
+        }
+
+        return data;
     }
 }
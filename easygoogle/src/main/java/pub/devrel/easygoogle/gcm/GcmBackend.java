@@ -0,0 +1,101 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import com.google.android.gms.gcm.GcmPubSub;
+import com.google.android.gms.gcm.GoogleCloudMessaging;
+import com.google.android.gms.iid.InstanceID;
+
+import java.io.IOException;
+
+/**
+ * The Play services calls made by the EasyGoogle GCM services. The default implementation
+ * calls {@link GoogleCloudMessaging}, {@link InstanceID} and {@link GcmPubSub}; tests and
+ * profiling runs can install a local fake with {@link #setInstance(GcmBackend)} so that the
+ * services run offline and every remote call can be counted.
+ */
+public abstract class GcmBackend {
+
+    private static volatile GcmBackend sInstance = new PlayServicesBackend();
+
+    /**
+     * @return the backend used by the GCM services.
+     */
+    public static GcmBackend getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Replace the backend used by the GCM services.
+     * @param backend the new backend, or null to restore the Play services backend.
+     */
+    public static void setInstance(GcmBackend backend) {
+        sInstance = backend != null ? backend : new PlayServicesBackend();
+    }
+
+    /**
+     * @see GoogleCloudMessaging#send(String, String, Bundle)
+     */
+    public abstract void send(Context context, String to, String messageId, Bundle data)
+            throws IOException;
+
+    /**
+     * @see InstanceID#getToken(String, String, Bundle)
+     */
+    public abstract String getToken(Context context, String senderId, String scope)
+            throws IOException;
+
+    /**
+     * @see GcmPubSub#subscribe(String, String, Bundle)
+     */
+    public abstract void subscribe(Context context, String token, String topic)
+            throws IOException;
+
+    /**
+     * @see GcmPubSub#unsubscribe(String, String)
+     */
+    public abstract void unsubscribe(Context context, String token, String topic)
+            throws IOException;
+
+    private static class PlayServicesBackend extends GcmBackend {
+
+        @Override
+        public void send(Context context, String to, String messageId, Bundle data)
+                throws IOException {
+            GoogleCloudMessaging.getInstance(context).send(to, messageId, data);
+        }
+
+        @Override
+        public String getToken(Context context, String senderId, String scope)
+                throws IOException {
+            return InstanceID.getInstance(context).getToken(senderId, scope, null);
+        }
+
+        @Override
+        public void subscribe(Context context, String token, String topic) throws IOException {
+            GcmPubSub.getInstance(context).subscribe(token, topic, null);
+        }
+
+        @Override
+        public void unsubscribe(Context context, String token, String topic)
+                throws IOException {
+            GcmPubSub.getInstance(context).unsubscribe(token, topic);
+        }
+    }
+}
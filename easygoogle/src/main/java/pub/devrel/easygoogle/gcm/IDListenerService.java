@@ -37,6 +37,16 @@ public class IDListenerService extends InstanceIDListenerService {
     public void onTokenRefresh() {
         Log.d(TAG, "onTokenRefresh");
 
+        // Cached tokens are no longer valid
+        TokenCache.getInstance(this).invalidate();
+
+        // Topic subscriptions belong to the old token, re-subscribe to everything
+        TopicStore topicStore = TopicStore.getInstance(this);
+        if (topicStore.hasDesired()) {
+            topicStore.clearConfirmed();
+            PubSubService.syncTopics(this);
+        }
+
         // TODO(samstern): I might not even need this class at all, it does not seem to do anything
         // that I can't do directly in IDRegisterService (or vice versa).
         Intent intent = new Intent(this, IDRegisterService.class);
@@ -20,9 +20,6 @@ import android.content.ComponentName;
 import android.content.Intent;
 import android.util.Log;
 
-import com.google.android.gms.gcm.GoogleCloudMessaging;
-import com.google.android.gms.iid.InstanceID;
-
 import java.util.List;
 
 import pub.devrel.easygoogle.R;
@@ -42,13 +39,13 @@ public class IDRegisterService extends IntentService {
 
         try {
             // Initially this call goes out to the network to retrieve the token, subsequent calls
-            // are local.
-            InstanceID instanceID = InstanceID.getInstance(this);
-            String token = instanceID.getToken(senderId, GoogleCloudMessaging.INSTANCE_ID_SCOPE, null);
+            // are served from the cache until the token is refreshed.
+            String token = TokenCache.getInstance(this).getToken(senderId);
             Log.i(TAG, "GCM Registration Token: " + token);
 
             // Find any services that could handle this
-            List<ComponentName> services = GCMUtils.findServices(this, gcmPermissionName);
+            List<ComponentName> services = ServiceRegistry.getInstance(this)
+                    .getServices(gcmPermissionName);
 
             // Notify the services of a new token
             for (ComponentName cn : services) {
@@ -0,0 +1,224 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import pub.devrel.easygoogle.EasyGoogleMetrics;
+
+/**
+ * Delivers messages to a {@link Messaging.MessagingListener} on a dedicated background thread
+ * through a bounded queue, so that slow listeners do not block the main thread. When the queue
+ * is full, messages are dropped or coalesced according to an {@link OverflowPolicy}.
+ */
+public class ListenerDispatcher {
+
+    private static final String TAG = "ListenerDispatcher";
+
+    /**
+     * What to do with a new message when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Drop the oldest queued message to make room. */
+        DROP_OLDEST,
+        /** Drop the new message. */
+        DROP_NEWEST,
+        /**
+         * Replace a queued message with the same coalescing key (see
+         * {@link MessagingOptions#getCoalesceKey()}), otherwise drop the oldest queued message.
+         * Messages GCM marked as not collapsible never replace each other.
+         */
+        COALESCE
+    }
+
+    private volatile Messaging.MessagingListener mListener;
+    private final int mCapacity;
+    private final OverflowPolicy mPolicy;
+    private final String mCoalesceKey;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final ArrayDeque<ReceivedMessage> mQueue;
+
+    private boolean mDrainScheduled;
+    private int mMaxDepth;
+    private long mDropped;
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Messaging.MessagingListener listener;
+                ReceivedMessage message;
+                synchronized (ListenerDispatcher.this) {
+                    // Without a listener the messages stay queued until setListener
+                    listener = mListener;
+                    message = listener != null ? mQueue.poll() : null;
+                    if (message == null) {
+                        mDrainScheduled = false;
+                        return;
+                    }
+                }
+
+                GCMUtils.recordListenerLatency(message.getReceivedAt());
+                listener.onMessageReceived(message.getFrom(), message.getData());
+            }
+        }
+    };
+
+    /**
+     * Create a dispatcher and start its thread.
+     * @param listener the listener to deliver messages to.
+     * @param capacity maximum number of messages waiting for the listener.
+     * @param policy what to do when the queue is full.
+     * @param coalesceKey the data field identifying messages that replace each other, used by
+     *                    {@link OverflowPolicy#COALESCE}.
+     */
+    public ListenerDispatcher(Messaging.MessagingListener listener, int capacity,
+                              OverflowPolicy policy, String coalesceKey) {
+        mListener = listener;
+        mCapacity = capacity;
+        mPolicy = policy;
+        mCoalesceKey = coalesceKey;
+        mQueue = new ArrayDeque<>(capacity);
+
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Queue a message for the listener.
+     * @param from the sender's ID.
+     * @param data arbitrary message data (determined by sender).
+     * @return true if the message was queued, false if it was dropped.
+     */
+    public boolean post(String from, Bundle data) {
+        return post(from, data, 0);
+    }
+
+    /**
+     * Queue a message for the listener.
+     * @param from the sender's ID.
+     * @param data arbitrary message data (determined by sender).
+     * @param receivedAt time the message was received, see
+     *                   {@link android.os.SystemClock#elapsedRealtime()}, or 0 if unknown.
+     * @return true if the message was queued, false if it was dropped.
+     */
+    synchronized boolean post(String from, Bundle data, long receivedAt) {
+        ReceivedMessage message = new ReceivedMessage(from, data, receivedAt);
+        if (mQueue.size() < mCapacity) {
+            mQueue.add(message);
+        } else if (!makeRoom(message)) {
+            mDropped++;
+            EasyGoogleMetrics.increment(EasyGoogleMetrics.GCM_LISTENER_DROPS);
+            Log.w(TAG, "Listener queue full, dropping new message");
+            return false;
+        }
+
+        mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+        if (!mDrainScheduled) {
+            mDrainScheduled = true;
+            mHandler.post(mDrainRunnable);
+        }
+
+        return true;
+    }
+
+    /**
+     * Replace the listener, for example with the one from a re-created Activity. Messages
+     * already queued are delivered to the new listener.
+     * @param listener the listener to deliver messages to, or null to hold messages until a
+     *                 listener is set.
+     */
+    public synchronized void setListener(Messaging.MessagingListener listener) {
+        mListener = listener;
+        if (listener != null && !mQueue.isEmpty() && !mDrainScheduled) {
+            mDrainScheduled = true;
+            mHandler.post(mDrainRunnable);
+        }
+    }
+
+    /**
+     * @return the number of messages waiting for the listener.
+     */
+    public synchronized int getDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return the largest number of messages that have been waiting for the listener at once.
+     */
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * @return the number of messages dropped or coalesced because the queue was full.
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Stop the dispatch thread. Queued messages are discarded.
+     */
+    public void quit() {
+        synchronized (this) {
+            mQueue.clear();
+        }
+        mThread.quit();
+    }
+
+    /**
+     * Apply the overflow policy to a full queue, queueing {@code message} if possible.
+     * @return false if {@code message} was dropped.
+     */
+    private boolean makeRoom(ReceivedMessage message) {
+        if (mPolicy == OverflowPolicy.DROP_NEWEST) {
+            return false;
+        }
+
+        if (mPolicy == OverflowPolicy.COALESCE) {
+            String key = MessagingOptions.getCoalesceValue(message.getData(), mCoalesceKey);
+            if (key != null) {
+                Iterator<ReceivedMessage> it = mQueue.iterator();
+                while (it.hasNext()) {
+                    if (key.equals(MessagingOptions.getCoalesceValue(it.next().getData(),
+                            mCoalesceKey))) {
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (mQueue.size() >= mCapacity) {
+            mQueue.poll();
+        }
+
+        mDropped++;
+        EasyGoogleMetrics.increment(EasyGoogleMetrics.GCM_LISTENER_DROPS);
+        mQueue.add(message);
+        return true;
+    }
+}
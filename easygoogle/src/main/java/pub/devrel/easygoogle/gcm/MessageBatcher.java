@@ -0,0 +1,236 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import pub.devrel.easygoogle.EasyGoogleMetrics;
+import pub.devrel.easygoogle.R;
+
+/**
+ * Collects inbound messages for a short window and delivers them to each
+ * {@link EasyMessageService} as a single Intent, instead of one Intent per message per service.
+ * Used by {@link MessageListenerService} when batching is enabled in {@link MessagingOptions}.
+ *
+ * GCM only keeps the device awake while a message is being handed over, so a wake lock is held
+ * from the first message of a batch until it is delivered. Pending messages are also written to
+ * a journal, so that a batch lost to process death is delivered the next time the batcher is
+ * created. A batch is removed from the journal once it is delivered, so delivery is at least
+ * once: a batch may be delivered again if the process dies during delivery.
+ */
+public class MessageBatcher {
+
+    private static final String TAG = "MessageBatcher";
+
+    public static final String EXTRA_MESSAGES = "messages";
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String JOURNAL_FILE_NAME = "easygoogle_batch";
+
+    // Extra time the wake lock is held past the window, in case a flush is delayed
+    private static final long WAKE_LOCK_MARGIN_MS = 10 * 1000;
+
+    private static MessageBatcher sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final PowerManager.WakeLock mWakeLock;
+
+    // Pending messages that survive process death
+    private final MessageJournal mJournal;
+
+    // Alternating sender and encoded data for each pending message
+    private List<byte[]> mPending = new ArrayList<>();
+    // Journal IDs of the pending messages
+    private List<Long> mPendingIds = new ArrayList<>();
+    private int mPendingBytes;
+    private String mPermission;
+    private long mFirstReceivedAt;
+
+    // Deadline for delivering the pending batch, see SystemClock.elapsedRealtime()
+    private long mFlushAt;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public static synchronized MessageBatcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MessageBatcher(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private MessageBatcher(Context context) {
+        mContext = context;
+
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        PowerManager powerManager = (PowerManager) context.getSystemService(
+                Context.POWER_SERVICE);
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+
+        mJournal = new MessageJournal(new File(context.getFilesDir(), JOURNAL_FILE_NAME));
+
+        // Deliver any batch left behind by a previous process
+        if (mJournal.getCount() > 0) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    replay();
+                }
+            });
+        }
+    }
+
+    /**
+     * Add a message to the current batch. The batch is delivered when the window in
+     * {@code options} elapses, or immediately if it has reached its count or size limit.
+     * @param permission the permission used to find {@link EasyMessageService} components.
+     * @param from the sender's ID.
+     * @param data arbitrary message data (determined by sender).
+     * @param options batching parameters.
+     * @param receivedAt time the message was received, see
+     *                   {@link android.os.SystemClock#elapsedRealtime()}.
+     */
+    public void add(String permission, String from, Bundle data, MessagingOptions options,
+                    long receivedAt) {
+        add(permission, from, data, options, receivedAt, mJournal.add(from, data));
+    }
+
+    private void add(String permission, String from, Bundle data, MessagingOptions options,
+                     long receivedAt, long journalId) {
+        byte[] fromBytes = from == null ? new byte[0] : from.getBytes(UTF_8);
+        byte[] encoded = options.getCodec().encode(data);
+
+        boolean full;
+        synchronized (this) {
+            mPermission = permission;
+            if (mPending.isEmpty()) {
+                mFirstReceivedAt = receivedAt;
+                mFlushAt = SystemClock.elapsedRealtime() + options.getBatchWindowMs();
+                mWakeLock.acquire(options.getBatchWindowMs() + WAKE_LOCK_MARGIN_MS);
+            }
+            mPending.add(fromBytes);
+            mPending.add(encoded);
+            mPendingIds.add(journalId);
+            mPendingBytes += fromBytes.length + encoded.length;
+
+            // Also deliver now if the flush is overdue, for example after the device slept
+            int count = mPending.size() / 2;
+            full = count >= options.getBatchMaxCount()
+                    || mPendingBytes >= options.getBatchMaxBytes()
+                    || SystemClock.elapsedRealtime() >= mFlushAt;
+            if (!full && count == 1) {
+                mHandler.postDelayed(mFlushRunnable, options.getBatchWindowMs());
+            }
+        }
+
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Deliver the current batch, if any, to all {@link EasyMessageService} components.
+     */
+    public void flush() {
+        List<byte[]> batch;
+        List<Long> batchIds;
+        String permission;
+        long receivedAt;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            if (mPending.isEmpty()) {
+                return;
+            }
+
+            batch = mPending;
+            batchIds = mPendingIds;
+            permission = mPermission;
+            receivedAt = mFirstReceivedAt;
+            mPending = new ArrayList<>();
+            mPendingIds = new ArrayList<>();
+            mPendingBytes = 0;
+        }
+
+        Log.d(TAG, "flush: " + (batch.size() / 2) + " messages");
+        byte[] framed = BinaryFormat.frame(batch);
+        List<ComponentName> components = ServiceRegistry.getInstance(mContext)
+                .getServices(permission);
+        EasyGoogleMetrics.increment(EasyGoogleMetrics.GCM_FANOUT, components.size());
+        for (ComponentName cn : components) {
+            Intent batchIntent = new Intent();
+            batchIntent.setComponent(cn);
+            batchIntent.setAction(mContext.getString(R.string.action_new_messages));
+            batchIntent.putExtra(EXTRA_MESSAGES, framed);
+            batchIntent.putExtra(EasyMessageService.EXTRA_RECEIVED_AT, receivedAt);
+
+            mContext.startService(batchIntent);
+        }
+
+        mJournal.remove(batchIds);
+        synchronized (this) {
+            if (mPending.isEmpty() && mWakeLock.isHeld()) {
+                mWakeLock.release();
+            }
+        }
+    }
+
+    /**
+     * Deliver messages journaled by a previous process.
+     */
+    private void replay() {
+        String permission = PreferenceManager.getDefaultSharedPreferences(mContext)
+                .getString(GCMUtils.PREF_KEY_GCM_PERMISSION, null);
+        if (permission == null) {
+            return;
+        }
+
+        // The messages keep their journal IDs, so they stay journaled until delivered
+        MessagingOptions options = MessagingOptions.load(mContext);
+        Map<Long, ReceivedMessage> messages = mJournal.getMessages();
+        Log.d(TAG, "replay: " + messages.size() + " messages");
+        for (Map.Entry<Long, ReceivedMessage> entry : messages.entrySet()) {
+            ReceivedMessage message = entry.getValue();
+            add(permission, message.getFrom(), message.getData(), options, 0, entry.getKey());
+        }
+        flush();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process delivery of messages from {@link EasyMessageService} to
+ * {@link Messaging.MessagingListener}s. Listeners receive the message directly on the thread of
+ * their choice, without the Intent wrapping and filter matching of LocalBroadcastManager.
+ * Each delivery records {@link pub.devrel.easygoogle.EasyGoogleMetrics#GCM_RECEIVE_TO_LISTENER_MS}.
+ */
+public class MessageBus {
+
+    private static final MessageBus sInstance = new MessageBus();
+
+    private final CopyOnWriteArrayList<Registration> mRegistrations =
+            new CopyOnWriteArrayList<>();
+
+    /**
+     * A listener that hands messages on to another listener itself, and so records the delivery
+     * latency when it does.
+     */
+    interface ForwardingListener {
+
+        /**
+         * @param from the sender's ID.
+         * @param data arbitrary message data (determined by sender).
+         * @param receivedAt time the message was received, see
+         *                   {@link android.os.SystemClock#elapsedRealtime()}, or 0 if unknown.
+         */
+        void onMessageReceived(String from, Bundle data, long receivedAt);
+    }
+
+    private static class Registration {
+
+        private final Messaging.MessagingListener mListener;
+        private final Handler mHandler;
+
+        // Cleared by unregister, so messages already posted to mHandler are not delivered
+        private volatile boolean mActive = true;
+
+        private Registration(Messaging.MessagingListener listener, Handler handler) {
+            mListener = listener;
+            mHandler = handler;
+        }
+    }
+
+    public static MessageBus getInstance() {
+        return sInstance;
+    }
+
+    private MessageBus() {}
+
+    /**
+     * Register a listener to receive messages on the main thread.
+     * @param listener the listener.
+     */
+    public void register(Messaging.MessagingListener listener) {
+        register(listener, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * Register a listener to receive messages on the thread of a given Handler, for example
+     * one backed by a {@link android.os.HandlerThread} to keep work off the main thread.
+     * @param listener the listener.
+     * @param handler the Handler whose thread will call the listener.
+     */
+    public void register(Messaging.MessagingListener listener, Handler handler) {
+        unregister(listener);
+        mRegistrations.add(new Registration(listener, handler));
+    }
+
+    /**
+     * Stop delivering messages to a listener.
+     * @param listener the listener.
+     */
+    public void unregister(Messaging.MessagingListener listener) {
+        for (Registration registration : mRegistrations) {
+            if (registration.mListener == listener) {
+                registration.mActive = false;
+                mRegistrations.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * @return true if at least one listener is registered.
+     */
+    public boolean hasListeners() {
+        return !mRegistrations.isEmpty();
+    }
+
+    /**
+     * Deliver a message to all registered listeners.
+     * @param from the sender's ID.
+     * @param data arbitrary message data (determined by sender).
+     * @return true if there was at least one listener to deliver to, false otherwise.
+     */
+    public boolean post(String from, Bundle data) {
+        return post(from, data, 0, null);
+    }
+
+    /**
+     * Deliver a message to all registered listeners. A listener unregistered before its thread
+     * gets to the message does not receive it.
+     * @param from the sender's ID.
+     * @param data arbitrary message data (determined by sender).
+     * @param receivedAt time the message was received, see
+     *                   {@link android.os.SystemClock#elapsedRealtime()}, or 0 if unknown.
+     * @param fallback inbox to keep the message in if every listener was unregistered before
+     *                 receiving it, may be null.
+     * @return true if there was at least one listener to deliver to, false otherwise.
+     */
+    boolean post(final String from, final Bundle data, final long receivedAt,
+                 final MessageInbox fallback) {
+        List<Registration> registrations = new ArrayList<>(mRegistrations);
+        final AtomicInteger remaining = new AtomicInteger(registrations.size());
+        final AtomicBoolean delivered = new AtomicBoolean();
+        for (int i = 0; i < registrations.size(); i++) {
+            final Registration registration = registrations.get(i);
+
+            // Each listener after the first gets its own copy, since they may run concurrently
+            final Bundle listenerData = i == 0 ? data : new Bundle(data);
+
+            registration.mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (registration.mActive) {
+                        if (registration.mListener instanceof ForwardingListener) {
+                            ((ForwardingListener) registration.mListener)
+                                    .onMessageReceived(from, listenerData, receivedAt);
+                        } else {
+                            GCMUtils.recordListenerLatency(receivedAt);
+                            registration.mListener.onMessageReceived(from, listenerData);
+                        }
+                        delivered.set(true);
+                    }
+
+                    // Keep the message for the next listener if nobody received it
+                    if (remaining.decrementAndGet() == 0 && !delivered.get()
+                            && fallback != null) {
+                        fallback.add(from, data);
+                    }
+                }
+            });
+        }
+
+        return !registrations.isEmpty();
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Splits messages that are too large for a single GCM payload into chunks, and reassembles
+ * chunked messages on receipt. Each chunk carries the ID of the original message, its index and
+ * the total number of chunks, plus a slice of the JSON encoding of the original fields.
+ *
+ * Partially received messages are kept in memory only. They are evicted, oldest first, when
+ * they have waited longer than the reassembly timeout or when the buffer is full.
+ */
+public class MessageChunker {
+
+    private static final String TAG = "MessageChunker";
+
+    public static final String KEY_CHUNK_ID = "easygoogle_chunk_id";
+    public static final String KEY_CHUNK_INDEX = "easygoogle_chunk_index";
+    public static final String KEY_CHUNK_COUNT = "easygoogle_chunk_count";
+    public static final String KEY_CHUNK_DATA = "easygoogle_chunk_data";
+
+    // Room left in each chunk for the header fields
+    static final int CHUNK_OVERHEAD_BYTES = 160;
+
+    // Memory for one slot of a partial message's chunk array
+    private static final int CHUNK_SLOT_BYTES = 4;
+
+    // Least memory a chunk can take once received: its slot and at least one character
+    private static final int MIN_CHUNK_BYTES = CHUNK_SLOT_BYTES + 2;
+
+    private static MessageChunker sInbound;
+
+    private final long mTimeoutMs;
+    private final int mMaxBytes;
+
+    // Partial messages by sender and chunk ID, oldest first
+    private final LinkedHashMap<String, Partial> mPartials = new LinkedHashMap<>();
+    private int mBufferedBytes;
+
+    private static class Partial {
+
+        private final long mCreated;
+        private final String[] mChunks;
+        private int mReceived;
+        private int mBytes;
+
+        Partial(long created, int count) {
+            mCreated = created;
+            mChunks = new String[count];
+            mBytes = count * CHUNK_SLOT_BYTES;
+        }
+    }
+
+    /**
+     * Get the process-wide reassembly buffer used by {@link MessageListenerService}, configured
+     * by {@link MessagingOptions.Builder#setChunking(int, long, int)}.
+     * @param options messaging options.
+     * @return the inbound reassembly buffer.
+     */
+    public static synchronized MessageChunker getInbound(MessagingOptions options) {
+        if (sInbound == null
+                || sInbound.mTimeoutMs != options.getReassemblyTimeoutMs()
+                || sInbound.mMaxBytes != options.getReassemblyMaxBytes()) {
+            sInbound = new MessageChunker(options.getReassemblyTimeoutMs(),
+                    options.getReassemblyMaxBytes());
+        }
+
+        return sInbound;
+    }
+
+    /**
+     * Create a reassembly buffer.
+     * @param timeoutMs how long to wait for the remaining chunks of a message, in milliseconds.
+     * @param maxBytes maximum memory used by partial messages.
+     */
+    public MessageChunker(long timeoutMs, int maxBytes) {
+        mTimeoutMs = timeoutMs;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Split message data into chunks that each fit in {@code maxChunkBytes}.
+     * @param data arbitrary message data.
+     * @param chunkId an ID for the message, unique for this sender.
+     * @param maxChunkBytes maximum encoded size of a single message.
+     * @return a list holding only {@code data} if it fits in a single message, otherwise the
+     * chunks in order.
+     */
+    public static List<Bundle> split(Bundle data, String chunkId, int maxChunkBytes) {
+        String json = GCMUtils.toJson(data);
+        if (utf8Length(json, 0, json.length()) <= maxChunkBytes) {
+            return Collections.singletonList(data);
+        }
+
+        // Slice on character boundaries so that each slice is valid UTF-8 on its own
+        int budget = maxChunkBytes - CHUNK_OVERHEAD_BYTES;
+        List<String> slices = new ArrayList<>();
+        int start = 0;
+        while (start < json.length()) {
+            int end = start;
+            int bytes = 0;
+            while (end < json.length()) {
+                int step = Character.isHighSurrogate(json.charAt(end)) ? 2 : 1;
+                int stepBytes = utf8Length(json, end, Math.min(end + step, json.length()));
+                if (bytes + stepBytes > budget) {
+                    break;
+                }
+                bytes += stepBytes;
+                end += step;
+            }
+            slices.add(json.substring(start, end));
+            start = end;
+        }
+
+        List<Bundle> chunks = new ArrayList<>(slices.size());
+        for (int i = 0; i < slices.size(); i++) {
+            Bundle chunk = new Bundle();
+            chunk.putString(KEY_CHUNK_ID, chunkId);
+            chunk.putString(KEY_CHUNK_INDEX, Integer.toString(i));
+            chunk.putString(KEY_CHUNK_COUNT, Integer.toString(slices.size()));
+            chunk.putString(KEY_CHUNK_DATA, slices.get(i));
+            chunks.add(chunk);
+        }
+
+        return chunks;
+    }
+
+    /**
+     * @param data message data.
+     * @return true if the data is a chunk produced by {@link #split(Bundle, String, int)}.
+     */
+    public static boolean isChunk(Bundle data) {
+        return data.getString(KEY_CHUNK_ID) != null;
+    }
+
+    /**
+     * Add a received chunk.
+     * @param from the sender's ID.
+     * @param chunk the chunk, see {@link #isChunk(Bundle)}.
+     * @return the reassembled message data if this was the last missing chunk, otherwise null.
+     */
+    public synchronized Bundle add(String from, Bundle chunk) {
+        long now = SystemClock.elapsedRealtime();
+        evictExpired(now);
+
+        int index;
+        int count;
+        try {
+            index = Integer.parseInt(chunk.getString(KEY_CHUNK_INDEX));
+            count = Integer.parseInt(chunk.getString(KEY_CHUNK_COUNT));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Dropping malformed chunk", e);
+            return null;
+        }
+
+        String slice = chunk.getString(KEY_CHUNK_DATA);
+        if (count < 1 || index < 0 || index >= count || slice == null) {
+            Log.w(TAG, "Dropping malformed chunk");
+            return null;
+        }
+
+        // Check the count before allocating for it, the whole message could never fit anyway
+        if (count > mMaxBytes / MIN_CHUNK_BYTES) {
+            Log.w(TAG, "Dropping chunk of a message with too many chunks: " + count);
+            return null;
+        }
+
+        String key = from + "|" + chunk.getString(KEY_CHUNK_ID);
+        Partial partial = mPartials.get(key);
+        if (partial == null) {
+            partial = new Partial(now, count);
+            mPartials.put(key, partial);
+            mBufferedBytes += partial.mBytes;
+        } else if (partial.mChunks.length != count) {
+            Log.w(TAG, "Dropping chunk with inconsistent count");
+            return null;
+        }
+
+        if (partial.mChunks[index] == null) {
+            partial.mChunks[index] = slice;
+            partial.mReceived++;
+            partial.mBytes += 2 * slice.length();
+            mBufferedBytes += 2 * slice.length();
+        }
+
+        if (partial.mReceived < count) {
+            evictOverflow();
+            return null;
+        }
+
+        remove(key);
+        StringBuilder json = new StringBuilder();
+        for (String part : partial.mChunks) {
+            json.append(part);
+        }
+
+        // Keep fields added outside of the chunk, such as the GCM message ID
+        Bundle data = new Bundle(chunk);
+        data.remove(KEY_CHUNK_ID);
+        data.remove(KEY_CHUNK_INDEX);
+        data.remove(KEY_CHUNK_COUNT);
+        data.remove(KEY_CHUNK_DATA);
+        try {
+            return GCMUtils.fromJson(json.toString(), data);
+        } catch (JSONException e) {
+            Log.e(TAG, "Could not decode reassembled message", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of partially received messages.
+     */
+    public synchronized int getPendingCount() {
+        return mPartials.size();
+    }
+
+    private void evictExpired(long now) {
+        Iterator<Partial> it = mPartials.values().iterator();
+        while (it.hasNext()) {
+            Partial partial = it.next();
+            if (now - partial.mCreated < mTimeoutMs) {
+                // Oldest first, so the rest are newer
+                return;
+            }
+
+            Log.w(TAG, "Evicting expired partial message");
+            mBufferedBytes -= partial.mBytes;
+            it.remove();
+        }
+    }
+
+    private void evictOverflow() {
+        Iterator<Partial> it = mPartials.values().iterator();
+        while (mBufferedBytes > mMaxBytes && it.hasNext()) {
+            Partial partial = it.next();
+            Log.w(TAG, "Reassembly buffer full, evicting partial message");
+            mBufferedBytes -= partial.mBytes;
+            it.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Partial partial = mPartials.remove(key);
+        if (partial != null) {
+            mBufferedBytes -= partial.mBytes;
+        }
+    }
+
+    private static int utf8Length(String s, int start, int end) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import pub.devrel.easygoogle.EasyGoogleMetrics;
+
+/**
+ * Holds inbound messages for a short window so that a message can be replaced by a newer one
+ * with the same coalescing key before it is delivered. Superseded messages are never
+ * dispatched. Used by {@link MessageListenerService} when coalescing is enabled in
+ * {@link MessagingOptions}.
+ *
+ * Like {@link MessageBatcher}, a wake lock is held while any message is waiting and waiting
+ * messages are journaled, so they are delivered after sleep or process death. A message is
+ * removed from the journal as soon as it is delivered or superseded, so a replay only delivers
+ * messages that were still waiting, or that were being delivered when the process died.
+ */
+public class MessageCoalescer {
+
+    private static final String TAG = "MessageCoalescer";
+
+    private static final String JOURNAL_FILE_NAME = "easygoogle_coalesce";
+
+    // Extra time the wake lock is held past the window, in case a delivery is delayed
+    private static final long WAKE_LOCK_MARGIN_MS = 10 * 1000;
+
+    private static MessageCoalescer sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final PowerManager.WakeLock mWakeLock;
+
+    // Waiting messages that survive process death
+    private final MessageJournal mJournal;
+
+    // Latest pending message for each key
+    private final Map<String, Pending> mPending = new HashMap<>();
+
+    private class Pending implements Runnable {
+
+        private final String mKey;
+        private String mPermission;
+        private String mFrom;
+        private Bundle mData;
+        private MessagingOptions mOptions;
+        private long mReceivedAt;
+        private long mJournalId;
+
+        private Pending(String key) {
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            deliver(this);
+        }
+    }
+
+    public static synchronized MessageCoalescer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MessageCoalescer(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private MessageCoalescer(Context context) {
+        mContext = context;
+
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        PowerManager powerManager = (PowerManager) context.getSystemService(
+                Context.POWER_SERVICE);
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+
+        mJournal = new MessageJournal(new File(context.getFilesDir(), JOURNAL_FILE_NAME));
+
+        // Deliver any messages left waiting by a previous process
+        if (mJournal.getCount() > 0) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    replay();
+                }
+            });
+        }
+    }
+
+    /**
+     * Add a message. If a message with the same key is already waiting it is replaced,
+     * otherwise the message is delivered once the coalescing window elapses.
+     * @param permission the permission used to find {@link EasyMessageService} components.
+     * @param from the sender's ID.
+     * @param data arbitrary message data (determined by sender).
+     * @param options coalescing parameters.
+     * @param receivedAt time the message was received, see
+     *                   {@link android.os.SystemClock#elapsedRealtime()}.
+     */
+    public void add(String permission, String from, Bundle data, MessagingOptions options,
+                    long receivedAt) {
+        String key = MessagingOptions.getCoalesceValue(data, options.getCoalesceKey());
+        if (key == null) {
+            // Nothing to coalesce with, or a message GCM marked as not collapsible
+            MessageListenerService.dispatch(mContext, permission, from, data, options,
+                    receivedAt);
+            return;
+        }
+
+        add(key, permission, from, data, options, receivedAt, mJournal.add(from, data));
+    }
+
+    private synchronized void add(String key, String permission, String from, Bundle data,
+                                  MessagingOptions options, long receivedAt, long journalId) {
+        // Extended by every message, released once nothing is waiting
+        mWakeLock.acquire(options.getCoalesceWindowMs() + WAKE_LOCK_MARGIN_MS);
+
+        Pending pending = mPending.get(key);
+        if (pending == null) {
+            pending = new Pending(key);
+            mPending.put(key, pending);
+            mHandler.postDelayed(pending, options.getCoalesceWindowMs());
+        } else {
+            Log.d(TAG, "Coalescing message with key " + key);
+            EasyGoogleMetrics.increment(EasyGoogleMetrics.GCM_MESSAGES_COALESCED);
+            mJournal.remove(pending.mJournalId);
+        }
+
+        pending.mPermission = permission;
+        pending.mFrom = from;
+        pending.mData = data;
+        pending.mOptions = options;
+        pending.mReceivedAt = receivedAt;
+        pending.mJournalId = journalId;
+    }
+
+    private void deliver(Pending pending) {
+        synchronized (this) {
+            mPending.remove(pending.mKey);
+        }
+
+        MessageListenerService.dispatch(mContext, pending.mPermission, pending.mFrom,
+                pending.mData, pending.mOptions, pending.mReceivedAt);
+
+        mJournal.remove(pending.mJournalId);
+        synchronized (this) {
+            if (mPending.isEmpty() && mWakeLock.isHeld()) {
+                mWakeLock.release();
+            }
+        }
+    }
+
+    /**
+     * Coalesce and deliver messages journaled by a previous process.
+     */
+    private void replay() {
+        String permission = PreferenceManager.getDefaultSharedPreferences(mContext)
+                .getString(GCMUtils.PREF_KEY_GCM_PERMISSION, null);
+        if (permission == null) {
+            return;
+        }
+
+        // The messages keep their journal IDs, so they stay journaled until delivered
+        MessagingOptions options = MessagingOptions.load(mContext);
+        Map<Long, ReceivedMessage> messages = mJournal.getMessages();
+        Log.d(TAG, "replay: " + messages.size() + " messages");
+        for (Map.Entry<Long, ReceivedMessage> entry : messages.entrySet()) {
+            ReceivedMessage message = entry.getValue();
+            String key = MessagingOptions.getCoalesceValue(message.getData(),
+                    options.getCoalesceKey());
+            if (key == null) {
+                // Coalescing was turned off since the message was journaled
+                MessageListenerService.dispatch(mContext, permission, message.getFrom(),
+                        message.getData(), options, 0);
+                mJournal.remove(entry.getKey());
+            } else {
+                add(key, permission, message.getFrom(), message.getData(), options, 0,
+                        entry.getKey());
+            }
+        }
+    }
+}
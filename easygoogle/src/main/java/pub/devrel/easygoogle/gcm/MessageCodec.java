@@ -0,0 +1,81 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes message data into a single byte array so that it can be carried between the EasyGoogle
+ * GCM services as one Intent extra rather than a re-parceled {@link Bundle}. Implementations must
+ * have a public no-argument constructor, see
+ * {@link MessagingOptions.Builder#setCodec(Class)}.
+ */
+public abstract class MessageCodec {
+
+    private static final String TAG = "MessageCodec";
+
+    private static final Map<String, MessageCodec> sCodecs = new HashMap<>();
+
+    /**
+     * Encode message data.
+     * @param data arbitrary message data.
+     * @return the encoded data.
+     */
+    public abstract byte[] encode(Bundle data);
+
+    /**
+     * Decode message data produced by {@link #encode(Bundle)}.
+     * @param encoded the encoded data.
+     * @return the decoded data.
+     */
+    public abstract Bundle decode(byte[] encoded);
+
+    /**
+     * Decode a single field. Codecs that can locate a field without decoding the whole message
+     * should override this, the default implementation decodes everything.
+     * @param encoded the encoded data.
+     * @param key the field to read.
+     * @return the value as a String, or null if not present.
+     */
+    public String getString(byte[] encoded, String key) {
+        Object value = decode(encoded).get(key);
+        return value == null ? null : String.valueOf(value);
+    }
+
+    /**
+     * Get a shared instance of a codec by class name.
+     * @param className the fully qualified name of a MessageCodec subclass.
+     * @return the codec, or a {@link BinaryMessageCodec} if the class could not be instantiated.
+     */
+    static synchronized MessageCodec forName(String className) {
+        MessageCodec codec = sCodecs.get(className);
+        if (codec == null) {
+            try {
+                codec = (MessageCodec) Class.forName(className).newInstance();
+            } catch (Exception e) {
+                Log.e(TAG, "Could not create codec " + className, e);
+                codec = new BinaryMessageCodec();
+            }
+            sCodecs.put(className, codec);
+        }
+
+        return codec;
+    }
+}
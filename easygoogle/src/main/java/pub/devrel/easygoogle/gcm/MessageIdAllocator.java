@@ -0,0 +1,79 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Allocates upstream message IDs that are unique across process restarts. IDs are reserved from
+ * disk in blocks (a "hi/lo" sequence): the end of the current block is persisted before any ID
+ * in it is handed out, so after a crash allocation resumes past the block and an ID is never
+ * reused. IDs skipped by a crash are simply never used. Within a block, allocation is a single
+ * atomic increment with no I/O, see {@link BlockIdAllocator}.
+ */
+public class MessageIdAllocator {
+
+    private static final String PREFS_NAME = "easygoogle_message_ids";
+    private static final String PREF_CEILING = "ceiling";
+
+    private static final int BLOCK_SIZE = 100;
+
+    private static MessageIdAllocator sInstance;
+
+    private final BlockIdAllocator mAllocator;
+
+    public static synchronized MessageIdAllocator getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MessageIdAllocator(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private MessageIdAllocator(Context context) {
+        mAllocator = new BlockIdAllocator(new PrefsCeilingStore(
+                context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)), BLOCK_SIZE);
+    }
+
+    /**
+     * Allocate the next message ID. This may block on disk I/O once every {@code BLOCK_SIZE}
+     * calls, so it should not be called on the main thread.
+     * @return a positive ID that has never been returned before by this application install.
+     */
+    public long next() {
+        return mAllocator.next();
+    }
+
+    private static class PrefsCeilingStore implements BlockIdAllocator.CeilingStore {
+
+        private final SharedPreferences mPrefs;
+
+        PrefsCeilingStore(SharedPreferences prefs) {
+            mPrefs = prefs;
+        }
+
+        @Override
+        public long load() {
+            return mPrefs.getLong(PREF_CEILING, 0);
+        }
+
+        @Override
+        public boolean save(long ceiling) {
+            return mPrefs.edit().putLong(PREF_CEILING, ceiling).commit();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds inbound messages that arrived while no listener was registered, so that
+ * {@link MessagingFragment} can deliver them when its Activity next starts. Messages are kept
+ * in a fixed-size ring buffer in a memory-mapped file, so appending is a memory copy and the
+ * contents survive process death. When the buffer is full, or holds too many or too old
+ * messages, the oldest messages are dropped.
+ */
+public class MessageInbox {
+
+    private static final String TAG = "MessageInbox";
+
+    private static final String FILE_NAME = "easygoogle_inbox";
+
+    private static final int MAGIC = 0x45474942;
+
+    // Header: magic, head offset, tail offset, message count
+    private static final int POS_MAGIC = 0;
+    private static final int POS_HEAD = 4;
+    private static final int POS_TAIL = 8;
+    private static final int POS_COUNT = 12;
+    private static final int HEADER_SIZE = 16;
+
+    // Record: payload length, received time, payload
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    // Written in place of a record length when the next record starts at the beginning
+    private static final int WRAP = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final MessageCodec CODEC = new BinaryMessageCodec();
+
+    private static MessageInbox sInstance;
+
+    private final int mMaxCount;
+    private final long mMaxAgeMs;
+    private final int mCapacity;
+    private final MappedByteBuffer mBuffer;
+
+    private int mHead;
+    private int mTail;
+    private int mCount;
+
+    /**
+     * Get the process-wide inbox, configured by
+     * {@link MessagingOptions.Builder#setInbox(int, long, int)}.
+     * @param context calling Context.
+     * @param options messaging options.
+     * @return the inbox, or null if the inbox is disabled or could not be opened.
+     */
+    public static synchronized MessageInbox get(Context context, MessagingOptions options) {
+        if (!options.isInboxEnabled()) {
+            return null;
+        }
+
+        if (sInstance == null || sInstance.mMaxCount != options.getInboxMaxCount()
+                || sInstance.mMaxAgeMs != options.getInboxMaxAgeMs()
+                || sInstance.mCapacity != options.getInboxMaxBytes()) {
+            File file = new File(context.getFilesDir(), FILE_NAME);
+            try {
+                sInstance = new MessageInbox(file, options.getInboxMaxCount(),
+                        options.getInboxMaxAgeMs(), options.getInboxMaxBytes());
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open inbox", e);
+                sInstance = null;
+            }
+        }
+
+        return sInstance;
+    }
+
+    private MessageInbox(File file, int maxCount, long maxAgeMs, int capacity)
+            throws IOException {
+        mMaxCount = maxCount;
+        mMaxAgeMs = maxAgeMs;
+        mCapacity = capacity;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean resized = raf.length() != capacity;
+            raf.setLength(capacity);
+
+            // The mapping stays valid after the channel is closed
+            FileChannel channel = raf.getChannel();
+            mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+            if (resized || !readHeader()) {
+                clear();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Add a message to the end of the inbox, dropping the oldest messages if needed.
+     * @param from the sender's ID.
+     * @param data arbitrary message data (determined by sender).
+     */
+    public synchronized void add(String from, Bundle data) {
+        byte[] fromBytes = from == null ? new byte[0] : from.getBytes(UTF_8);
+        byte[] payload = BinaryFormat.frame(Arrays.asList(fromBytes, CODEC.encode(data)));
+
+        int size = RECORD_HEADER_SIZE + payload.length;
+        if (size > mCapacity - HEADER_SIZE) {
+            Log.w(TAG, "Message too large for inbox, dropping");
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        while (mCount > 0 && (mCount >= mMaxCount || now - peekTime() > mMaxAgeMs)) {
+            dropOldest();
+        }
+
+        int pos;
+        while ((pos = getWritePosition(size)) < 0) {
+            dropOldest();
+        }
+
+        if (pos != mTail && mCapacity - mTail >= 4) {
+            mBuffer.putInt(mTail, WRAP);
+        }
+
+        mBuffer.putInt(pos, payload.length);
+        mBuffer.putLong(pos + 4, now);
+        mBuffer.position(pos + RECORD_HEADER_SIZE);
+        mBuffer.put(payload);
+
+        mTail = pos + size;
+        mCount++;
+        writeHeader();
+    }
+
+    /**
+     * Remove and return all messages in the inbox that are not too old.
+     * @return messages in order of arrival.
+     */
+    public synchronized List<ReceivedMessage> drain() {
+        List<ReceivedMessage> messages = new ArrayList<>(mCount);
+        long now = System.currentTimeMillis();
+        while (mCount > 0) {
+            long time = peekTime();
+
+            int length = mBuffer.getInt(mHead);
+            byte[] payload = new byte[length];
+            mBuffer.position(mHead + RECORD_HEADER_SIZE);
+            mBuffer.get(payload);
+            dropOldest();
+
+            if (now - time > mMaxAgeMs) {
+                continue;
+            }
+
+            try {
+                List<byte[]> frames = BinaryFormat.unframe(payload);
+                messages.add(new ReceivedMessage(new String(frames.get(0), UTF_8), CODEC,
+                        frames.get(1)));
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Dropping unreadable message", e);
+            }
+        }
+
+        clear();
+        return messages;
+    }
+
+    /**
+     * @return the number of messages in the inbox.
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Find where a record of {@code size} bytes can be written without overwriting the oldest
+     * record, wrapping around to the start if needed.
+     * @return the offset, or -1 if there is no room.
+     */
+    private int getWritePosition(int size) {
+        if (mCount == 0) {
+            mHead = HEADER_SIZE;
+            mTail = HEADER_SIZE;
+            return HEADER_SIZE;
+        }
+
+        if (mTail > mHead) {
+            if (mTail + size <= mCapacity) {
+                return mTail;
+            }
+            return HEADER_SIZE + size <= mHead ? HEADER_SIZE : -1;
+        }
+
+        return mTail + size <= mHead ? mTail : -1;
+    }
+
+    /**
+     * Move the head to the next record if the current position is a wrap marker.
+     */
+    private void skipWrap() {
+        if (mCapacity - mHead < 4 || mBuffer.getInt(mHead) == WRAP) {
+            mHead = HEADER_SIZE;
+        }
+    }
+
+    private long peekTime() {
+        skipWrap();
+        return mBuffer.getLong(mHead + 4);
+    }
+
+    private void dropOldest() {
+        skipWrap();
+        mHead += RECORD_HEADER_SIZE + mBuffer.getInt(mHead);
+        mCount--;
+        if (mCount == 0) {
+            mHead = HEADER_SIZE;
+            mTail = HEADER_SIZE;
+        }
+        writeHeader();
+    }
+
+    private void clear() {
+        mHead = HEADER_SIZE;
+        mTail = HEADER_SIZE;
+        mCount = 0;
+        writeHeader();
+    }
+
+    private boolean readHeader() {
+        if (mBuffer.getInt(POS_MAGIC) != MAGIC) {
+            return false;
+        }
+
+        mHead = mBuffer.getInt(POS_HEAD);
+        mTail = mBuffer.getInt(POS_TAIL);
+        mCount = mBuffer.getInt(POS_COUNT);
+        return mHead >= HEADER_SIZE && mHead <= mCapacity
+                && mTail >= HEADER_SIZE && mTail <= mCapacity
+                && mCount >= 0;
+    }
+
+    private void writeHeader() {
+        mBuffer.putInt(POS_MAGIC, MAGIC);
+        mBuffer.putInt(POS_HEAD, mHead);
+        mBuffer.putInt(POS_TAIL, mTail);
+        mBuffer.putInt(POS_COUNT, mCount);
+    }
+}
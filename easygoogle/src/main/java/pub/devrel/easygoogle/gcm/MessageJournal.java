@@ -0,0 +1,251 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.os.Bundle;
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists the inbound messages that {@link MessageBatcher} and {@link MessageCoalescer} hold
+ * back, so that they survive process death. Every message gets an ID when it is added and
+ * stays in the journal until it is removed by that ID; nothing is ever evicted.
+ *
+ * The file is an append-only log of added and removed messages. It is compacted through an
+ * {@link AtomicFile} when the journal is opened and once removed messages outnumber the
+ * messages still in it.
+ */
+class MessageJournal {
+
+    private static final String TAG = "MessageJournal";
+
+    // Record: operation, message ID, and for OP_ADD the payload length and payload
+    private static final int OP_ADD = 1;
+    private static final int OP_REMOVE = 2;
+
+    // Removed messages tolerated in the file before it is compacted
+    private static final int COMPACT_MIN_REMOVED = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final MessageCodec CODEC = new BinaryMessageCodec();
+
+    private final AtomicFile mFile;
+
+    // Payloads of the messages in the journal by ID, in order of arrival
+    private final Map<Long, byte[]> mPayloads = new LinkedHashMap<>();
+    private long mNextId = 1;
+    private int mRemovedCount;
+    private DataOutputStream mOut;
+
+    /**
+     * Open a journal, loading the messages left in it by a previous process.
+     * @param file the file, created if needed.
+     */
+    MessageJournal(File file) {
+        mFile = new AtomicFile(file);
+        if (load()) {
+            compact();
+        }
+    }
+
+    /**
+     * Add a message to the journal.
+     * @param from the sender's ID.
+     * @param data arbitrary message data (determined by sender).
+     * @return the ID to remove the message with.
+     */
+    synchronized long add(String from, Bundle data) {
+        byte[] fromBytes = from == null ? new byte[0] : from.getBytes(UTF_8);
+        byte[] payload = BinaryFormat.frame(Arrays.asList(fromBytes, CODEC.encode(data)));
+
+        long id = mNextId++;
+        mPayloads.put(id, payload);
+        try {
+            DataOutputStream out = getOutput();
+            out.writeByte(OP_ADD);
+            out.writeLong(id);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not journal message", e);
+            closeOutput();
+        }
+
+        return id;
+    }
+
+    /**
+     * Remove a message that was delivered or is no longer needed.
+     * @param id the ID returned by {@link #add(String, Bundle)}.
+     */
+    synchronized void remove(long id) {
+        remove(Arrays.asList(id));
+    }
+
+    /**
+     * Remove messages that were delivered or are no longer needed.
+     * @param ids IDs returned by {@link #add(String, Bundle)}.
+     */
+    synchronized void remove(List<Long> ids) {
+        try {
+            DataOutputStream out = getOutput();
+            for (Long id : ids) {
+                if (mPayloads.remove(id) != null) {
+                    out.writeByte(OP_REMOVE);
+                    out.writeLong(id);
+                    mRemovedCount++;
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not journal removal", e);
+            closeOutput();
+        }
+
+        if (mRemovedCount >= COMPACT_MIN_REMOVED && mRemovedCount > mPayloads.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Get the messages in the journal, without removing them.
+     * @return messages by ID, in order of arrival.
+     */
+    synchronized Map<Long, ReceivedMessage> getMessages() {
+        Map<Long, ReceivedMessage> messages = new LinkedHashMap<>();
+        for (Map.Entry<Long, byte[]> entry : mPayloads.entrySet()) {
+            List<byte[]> frames = BinaryFormat.unframe(entry.getValue());
+            messages.put(entry.getKey(), new ReceivedMessage(new String(frames.get(0), UTF_8),
+                    CODEC, frames.get(1)));
+        }
+
+        return messages;
+    }
+
+    /**
+     * @return the number of messages in the journal.
+     */
+    synchronized int getCount() {
+        return mPayloads.size();
+    }
+
+    /**
+     * Replay the file into {@link #mPayloads}. A record cut short by process death ends the
+     * log.
+     * @return true if the file had any contents.
+     */
+    private boolean load() {
+        DataInputStream in = null;
+        boolean found = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            while (true) {
+                int op = in.readByte();
+                long id = in.readLong();
+                found = true;
+                mNextId = Math.max(mNextId, id + 1);
+                if (op == OP_ADD) {
+                    byte[] payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                    mPayloads.put(id, payload);
+                } else if (op == OP_REMOVE) {
+                    mPayloads.remove(id);
+                } else {
+                    Log.w(TAG, "Unreadable journal, ignoring the rest");
+                    break;
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing journaled yet
+        } catch (EOFException e) {
+            // Done
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not load journal", e);
+        } finally {
+            closeQuietly(in);
+        }
+
+        return found;
+    }
+
+    /**
+     * Replace the file with one holding only the messages still in the journal.
+     */
+    private void compact() {
+        closeOutput();
+
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            for (Map.Entry<Long, byte[]> entry : mPayloads.entrySet()) {
+                data.writeByte(OP_ADD);
+                data.writeLong(entry.getKey());
+                data.writeInt(entry.getValue().length);
+                data.write(entry.getValue());
+            }
+            data.flush();
+            mFile.finishWrite(out);
+            mRemovedCount = 0;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not compact journal", e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    private DataOutputStream getOutput() throws IOException {
+        if (mOut == null) {
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mFile.getBaseFile(), true)));
+        }
+
+        return mOut;
+    }
+
+    private void closeOutput() {
+        closeQuietly(mOut);
+        mOut = null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
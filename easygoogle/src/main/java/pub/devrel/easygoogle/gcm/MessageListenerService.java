@@ -16,15 +16,19 @@
 package pub.devrel.easygoogle.gcm;
 
 import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.google.android.gms.gcm.GcmListenerService;
 
+import java.io.File;
 import java.util.List;
 
+import pub.devrel.easygoogle.EasyGoogleMetrics;
 import pub.devrel.easygoogle.R;
 
 /**
@@ -34,9 +38,16 @@ public class MessageListenerService extends GcmListenerService {
 
     private static final String TAG = "MessageListenerService";
 
+    private static final String SEEN_MESSAGES_FILE_NAME = "easygoogle_seen_messages";
+
+    private static DuplicateFilter sInboundFilter;
+    private static int sInboundCapacity;
+    private static boolean sInboundPersistent;
+
     @Override
     public void onMessageReceived(String from, Bundle data) {
         Log.d(TAG, "onMessageReceived:" + from + ":" + data);
+        long receivedAt = SystemClock.elapsedRealtime();
 
         String gcmPermissionName = getGcmPermissionName();
         if (gcmPermissionName == null) {
@@ -44,19 +55,119 @@ public class MessageListenerService extends GcmListenerService {
             return;
         }
 
+        // Drop messages that GCM has already delivered
+        MessagingOptions options = MessagingOptions.load(this);
+        DuplicateFilter filter = getInboundFilter(this, options);
+        if (filter != null && filter.isDuplicate(GCMUtils.getMessageId(data))) {
+            Log.d(TAG, "Dropping duplicate message");
+            return;
+        }
+
+        // Reassemble chunked messages, only complete messages go any further
+        if (MessageChunker.isChunk(data)) {
+            data = MessageChunker.getInbound(options).add(from, data);
+            if (data == null) {
+                return;
+            }
+        }
+
+        // Expand compressed messages before they are coalesced or delivered
+        if (PayloadCompressor.isCompressed(data)) {
+            data = options.getCompressor().decompress(data);
+        }
+
+        // Hold back messages that may be superseded, if enabled
+        if (options.isCoalescingEnabled()) {
+            MessageCoalescer.getInstance(this).add(gcmPermissionName, from, data, options,
+                    receivedAt);
+            return;
+        }
+
+        dispatch(this, gcmPermissionName, from, data, options, receivedAt);
+    }
+
+    @Override
+    public void onMessageSent(String msgId) {
+        // GCM has accepted the upstream message, it can leave the queue
+        Log.d(TAG, "onMessageSent:" + msgId);
+        OutboundQueue.getInstance(this).acknowledge(msgId);
+    }
+
+    @Override
+    public void onSendError(String msgId, String error) {
+        Log.w(TAG, "onSendError:" + msgId + ":" + error);
+        int attempts = OutboundQueue.getInstance(this).requeue(msgId);
+        if (attempts > 0) {
+            MessageSenderService.scheduleRetry(this, attempts);
+        }
+    }
+
+    /**
+     * Deliver a message to all {@link EasyMessageService} components, either directly or
+     * through the {@link MessageBatcher}.
+     * @param context calling Context.
+     * @param permission the permission used to find EasyMessageService components.
+     * @param from the sender's ID.
+     * @param data arbitrary message data (determined by sender).
+     * @param options messaging options.
+     * @param receivedAt time the message was received, see
+     *                   {@link SystemClock#elapsedRealtime()}.
+     */
+    static void dispatch(Context context, String permission, String from, Bundle data,
+                         MessagingOptions options, long receivedAt) {
+        // Deliver in batches, if enabled
+        if (options.isBatchingEnabled()) {
+            MessageBatcher.getInstance(context).add(permission, from, data, options,
+                    receivedAt);
+            return;
+        }
+
+        // Encode once and carry the data as a single extra, rather than re-parceling the
+        // Bundle for every component
+        byte[] payload = options.getCodec().encode(data);
+
         // Notify all services with the PERMISSION_EASY_GCM permission about this message
-        List<ComponentName> components = GCMUtils.findServices(this, gcmPermissionName);
+        List<ComponentName> components = ServiceRegistry.getInstance(context)
+                .getServices(permission);
+        EasyGoogleMetrics.increment(EasyGoogleMetrics.GCM_FANOUT, components.size());
         for (ComponentName cn : components) {
             Log.d(TAG, "Launching: " + cn.toString());
 
             Intent newMessageIntent = new Intent();
             newMessageIntent.setComponent(cn);
-            newMessageIntent.setAction(getString(R.string.action_new_message));
+            newMessageIntent.setAction(context.getString(R.string.action_new_message));
             newMessageIntent.putExtra(EasyMessageService.EXTRA_FROM, from);
-            newMessageIntent.putExtras(data);
+            newMessageIntent.putExtra(EasyMessageService.EXTRA_PAYLOAD, payload);
+            newMessageIntent.putExtra(EasyMessageService.EXTRA_RECEIVED_AT, receivedAt);
+
+            context.startService(newMessageIntent);
+        }
+    }
 
-            startService(newMessageIntent);
+    /**
+     * Get the process-wide filter for inbound messages, configured by
+     * {@link MessagingOptions.Builder#setDuplicateFilter(int, boolean)}.
+     * @return the filter, or null if duplicate filtering is disabled.
+     */
+    private static synchronized DuplicateFilter getInboundFilter(Context context,
+                                                                 MessagingOptions options) {
+        int capacity = options.getDuplicateFilterCapacity();
+        if (capacity == 0) {
+            return null;
         }
+
+        boolean persistent = options.isDuplicateFilterPersistent();
+        if (sInboundFilter == null || sInboundCapacity != capacity
+                || sInboundPersistent != persistent) {
+            DuplicateFilter.Journal journal = persistent
+                    ? new FileJournal(new File(context.getFilesDir(), SEEN_MESSAGES_FILE_NAME))
+                    : null;
+            sInboundFilter = new DuplicateFilter(capacity, journal);
+            sInboundCapacity = capacity;
+            sInboundPersistent = persistent;
+        }
+
+        return sInboundFilter;
     }
 
     private String getGcmPermissionName() {
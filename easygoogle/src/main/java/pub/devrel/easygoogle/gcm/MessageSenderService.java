@@ -15,46 +15,219 @@
  */
 package pub.devrel.easygoogle.gcm;
 
+import android.app.AlarmManager;
 import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.google.android.gms.gcm.GoogleCloudMessaging;
-
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import pub.devrel.easygoogle.EasyGoogleMetrics;
 
 /**
- * An {@link IntentService} for sending GCM upstream messages.
+ * An {@link IntentService} for sending GCM upstream messages. Messages are first written to the
+ * {@link OutboundQueue} and then sent by a {@link SendEngine}, in order for each ordering key.
+ * If a send fails the queue is retried later with exponential backoff, or as soon as
+ * connectivity returns. Sent messages stay in the queue until GCM acknowledges them through
+ * {@link MessageListenerService}; messages GCM fails to deliver are retried the same way, and
+ * messages that are never acknowledged are sent again after {@link #ACK_TIMEOUT_MS}.
  */
 public class MessageSenderService extends IntentService {
 
     public static final String TAG = "MessageSenderService";
 
-    private static AtomicInteger sMessageId = new AtomicInteger();
+    // How long to wait for GCM to acknowledge a sent message before sending it again
+    public static final long ACK_TIMEOUT_MS = 60 * 60 * 1000;
+
+    // Last state set on ConnectivityReceiver in this process, null until first set
+    private static Boolean sConnectivityReceiverEnabled;
+
+    private SendEngine<OutboundQueue.Entry> mEngine;
+    private PayloadCompressor mCompressor;
+    private boolean mChunkingEnabled;
+    private int mChunkMaxBytes;
+
+    // Intents delivered to onStartCommand but not yet handled
+    private final AtomicInteger mPendingIntents = new AtomicInteger();
 
     public MessageSenderService() {
         super("MessageSenderService");
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        final GcmBackend backend = GcmBackend.getInstance();
+        MessagingOptions options = MessagingOptions.load(this);
+        mCompressor = options.isCompressionEnabled() ? options.getCompressor() : null;
+        mChunkingEnabled = options.isChunkingEnabled();
+        mChunkMaxBytes = options.getChunkMaxBytes();
+        mEngine = new SendEngine<>(new SendEngine.Transport<OutboundQueue.Entry>() {
+            @Override
+            public void send(OutboundQueue.Entry entry) throws IOException {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    backend.send(MessageSenderService.this, entry.getTo(), entry.getMessageId(),
+                            entry.getData());
+                    Log.d(TAG, "Sent:" + entry.getMessageId());
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to send GCM Message.", e);
+                    EasyGoogleMetrics.increment(EasyGoogleMetrics.GCM_SEND_FAILURES);
+                    throw e;
+                } finally {
+                    EasyGoogleMetrics.recordLatency(EasyGoogleMetrics.GCM_SEND_MS,
+                            SystemClock.elapsedRealtime() - start);
+                }
+            }
+        }, options.getSendThreads(), options.getSendWindow());
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mEngine.shutdown();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mPendingIntents.incrementAndGet();
+        return super.onStartCommand(intent, flags, startId);
+    }
+
     @Override
     protected void onHandleIntent(Intent intent) {
-        if (intent != null) {
+        OutboundQueue queue = OutboundQueue.getInstance(this);
+
+        // A new message to send, as opposed to a retry of the existing queue
+        if (intent != null && intent.hasExtra(MessagingFragment.MESSAGE_PAYLOAD_ARG)) {
             String senderEmail = getSenderEmail(intent.getStringExtra(MessagingFragment.SENDER_ID_ARG));
-            Bundle data = intent.getBundleExtra(MessagingFragment.MESSAGE_ARG);
-            String id = Integer.toString(sMessageId.incrementAndGet());
-            Log.d(TAG, "Sending gcm message:" + senderEmail + ":" + data + ":" + id);
-
-            try {
-                GoogleCloudMessaging gcm = GoogleCloudMessaging.getInstance(this);
-                gcm.send(senderEmail, id, data);
-                Log.d(TAG, "Sent!");
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to send GCM Message.", e);
+            String orderingKey = intent.getStringExtra(MessagingFragment.ORDERING_KEY_ARG);
+            Bundle data = MessagingOptions.load(this).getCodec()
+                    .decode(intent.getByteArrayExtra(MessagingFragment.MESSAGE_PAYLOAD_ARG));
+            String id = Long.toString(MessageIdAllocator.getInstance(this).next());
+            Log.d(TAG, "Queueing gcm message:" + senderEmail + ":" + data + ":" + id);
+
+            // Compress once before queueing, so retries do not pay for it again
+            if (mCompressor != null) {
+                data = mCompressor.compress(data);
+            }
+
+            if (!mChunkingEnabled) {
+                queue.enqueue(senderEmail, id, orderingKey, data);
+            } else {
+                // Split oversized messages, every chunk needs its own upstream message ID. The
+                // chunks of a message are always sent in order.
+                List<Bundle> chunks = MessageChunker.split(data, id, mChunkMaxBytes);
+                String chunkOrderingKey = orderingKey != null ? orderingKey : id;
+                for (int i = 0; i < chunks.size(); i++) {
+                    String chunkId = i == 0
+                            ? id
+                            : Long.toString(MessageIdAllocator.getInstance(this).next());
+                    queue.enqueue(senderEmail, chunkId, chunkOrderingKey, chunks.get(i));
+                }
+            }
+        }
+
+        // During a burst, queue every message before draining so that the engine has messages
+        // to send concurrently.
+        if (mPendingIntents.decrementAndGet() > 0) {
+            return;
+        }
+
+        drain(queue);
+    }
+
+    /**
+     * Send queued messages until the queue is empty or a send fails.
+     */
+    private void drain(OutboundQueue queue) {
+        int requeued = queue.requeueUnacknowledged(ACK_TIMEOUT_MS);
+        if (requeued > 0) {
+            Log.w(TAG, "drain: resending " + requeued + " unacknowledged messages");
+        }
+
+        SendEngine.Result<OutboundQueue.Entry> result = mEngine.sendAll(queue.getPending());
+        queue.markSent(result.getSent());
+
+        if (!result.getFailed().isEmpty()) {
+            int attempts = 0;
+            for (OutboundQueue.Entry entry : result.getFailed()) {
+                attempts = Math.max(attempts, queue.recordFailure(entry));
             }
+
+            scheduleRetry(this, attempts);
+            return;
+        }
+
+        if (Thread.currentThread().isInterrupted()) {
+            // Stopped early, pick up the rest on the next attempt
+            setRetryAlarm(this, 0);
+            return;
+        }
+
+        // Everything sent, only check back for messages GCM has not acknowledged yet
+        cancelRetry();
+        if (queue.getUnacknowledgedCount() > 0) {
+            setRetryAlarm(this, ACK_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Retry sending the queue with exponential backoff, or as soon as connectivity returns.
+     * @param context calling Context.
+     * @param attempts the number of failed attempts so far.
+     */
+    static void scheduleRetry(Context context, int attempts) {
+        long delay = GCMUtils.getBackoffDelay(attempts);
+        Log.d(TAG, "scheduleRetry: attempt " + attempts + " in " + delay + "ms");
+        setRetryAlarm(context, delay);
+
+        // Also retry as soon as the network comes back
+        setConnectivityReceiverEnabled(context, true);
+    }
+
+    private void cancelRetry() {
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(getRetryIntent(this));
+
+        setConnectivityReceiverEnabled(this, false);
+    }
+
+    private static void setRetryAlarm(Context context, long delay) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(
+                Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delay,
+                getRetryIntent(context));
+    }
+
+    private static PendingIntent getRetryIntent(Context context) {
+        Intent intent = new Intent(context, MessageSenderService.class);
+        return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private static synchronized void setConnectivityReceiverEnabled(Context context,
+                                                                    boolean enabled) {
+        // Changing the component state is an IPC, skip it when nothing changes
+        if (sConnectivityReceiverEnabled != null && sConnectivityReceiverEnabled == enabled) {
+            return;
         }
+        sConnectivityReceiverEnabled = enabled;
+
+        int state = enabled
+                ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                : PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+        context.getPackageManager().setComponentEnabledSetting(
+                new ComponentName(context, ConnectivityReceiver.class), state,
+                PackageManager.DONT_KILL_APP);
     }
 
     public static String getSenderEmail(String senderId) {
@@ -17,6 +17,8 @@ package pub.devrel.easygoogle.gcm;
 
 import android.os.Bundle;
 
+import java.util.Set;
+
 
 /**
  * Interface to the Google Cloud Messaging API, which can be used to deliver push notifications
@@ -45,13 +47,27 @@ public class Messaging {
     }
 
     /**
-     * Send an upstream GCM message with some data.
+     * Send an upstream GCM message with some data. When concurrent sending is enabled, the
+     * message is not ordered relative to any other, use {@link #send(Bundle, String)} to keep
+     * messages in order.
      * @param bundle arbitrary key-value data to include in the message.
      */
     public void send(Bundle bundle) {
         mFragment.send(bundle);
     }
 
+    /**
+     * Send an upstream GCM message with some data. Messages with the same ordering key are
+     * always sent in the order they were given to this method; when concurrent sending is enabled
+     * with {@link MessagingOptions.Builder#setSendConcurrency(int, int)}, messages with
+     * different keys may be sent in parallel.
+     * @param bundle arbitrary key-value data to include in the message.
+     * @param orderingKey key used to order this message relative to others.
+     */
+    public void send(Bundle bundle, String orderingKey) {
+        mFragment.send(bundle, orderingKey);
+    }
+
     /**
      * Subscribe to a GCM topic.
      * @see com.google.android.gms.gcm.GcmPubSub#subscribe(String, String, Bundle)
@@ -70,6 +86,53 @@ public class Messaging {
         mFragment.unsubscribeFrom(topic);
     }
 
+    /**
+     * Declare the complete set of GCM topics this application should be subscribed to. The set
+     * is persisted and compared against the topics already confirmed by GCM, so only topics
+     * that were added or removed cause network calls. Failed operations are retried in the
+     * background, and all topics are re-subscribed automatically after a token refresh.
+     * Topics subscribed with {@link #subscribeTo(String)} that are not in this set will be
+     * unsubscribed.
+     * @param topics every topic that should be subscribed.
+     */
+    public void setTopics(Set<String> topics) {
+        mFragment.setTopics(topics);
+    }
+
+    /**
+     * Get the number of received messages waiting to be delivered to the
+     * {@link MessagingListener}. This is only ever non-zero when background dispatch is enabled
+     * with {@link MessagingOptions.Builder#setBackgroundDispatch(int,
+     * ListenerDispatcher.OverflowPolicy)}, and a growing value means the listener is falling
+     * behind.
+     * @return the number of messages waiting.
+     */
+    public int getPendingMessageCount() {
+        return mFragment.getPendingMessageCount();
+    }
+
+    /**
+     * Get the largest number of received messages that have waited for the
+     * {@link MessagingListener} at once, see {@link #getPendingMessageCount()}. Useful for
+     * sizing the capacity passed to {@link MessagingOptions.Builder#setBackgroundDispatch(int,
+     * ListenerDispatcher.OverflowPolicy)}.
+     * @return the high-water mark of waiting messages.
+     */
+    public int getMaxPendingMessageCount() {
+        return mFragment.getMaxPendingMessageCount();
+    }
+
+    /**
+     * Get the number of received messages dropped or coalesced by the
+     * {@link ListenerDispatcher.OverflowPolicy} because the {@link MessagingListener} fell
+     * behind. Also counted in
+     * {@link pub.devrel.easygoogle.EasyGoogleMetrics#GCM_LISTENER_DROPS}.
+     * @return the number of messages dropped.
+     */
+    public long getDroppedMessageCount() {
+        return mFragment.getDroppedMessageCount();
+    }
+
     // TODO(afshar): remove or use unused methods
     public void setSenderId(String senderId) {
         mFragment.setSenderId(senderId);
@@ -25,6 +25,8 @@ import android.support.v4.app.Fragment;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import java.util.Set;
+
 import pub.devrel.easygoogle.R;
 
 /**
@@ -38,24 +40,46 @@ public class MessagingFragment extends Fragment {
     public static final String GCM_PERMISSION_ARG = "GCM_PERMISSION";
     public static final String MESSAGE_RECEIVED = "MESSAGE_RECEIVED";
     public static final String MESSAGE_FROM_FIELD = "MESSAGE_FROM";
+    public static final String MESSAGE_RECEIVED_AT_FIELD = "MESSAGE_RECEIVED_AT";
     public static final String MESSAGE_ARG = "MESSAGE_ARG";
+    public static final String MESSAGE_PAYLOAD_ARG = "MESSAGE_PAYLOAD_ARG";
     public static final String TOPIC_ARG = "TOPIC_ARG";
+    public static final String ORDERING_KEY_ARG = "ORDERING_KEY_ARG";
+    public static final String MESSAGE_HANDLED_FIELD = "MESSAGE_HANDLED";
 
     public static final String GCM_PERMISSION_RES_NAME = "gcm_permission";
 
     private String mSenderId;
     private Messaging mMessaging;
     private Messaging.MessagingListener mListener;
+    private ListenerDispatcher mDispatcher;
+    private MessagingOptions mOptions = new MessagingOptions.Builder().build();
+    private boolean mOptionsChanged = true;
     private BroadcastReceiver mReceiver;
+    private Messaging.MessagingListener mBusListener;
+
+    // Messages delivered to this fragment's listener, which may arrive by more than one route
+    private final DuplicateFilter mDeliveredFilter =
+            new DuplicateFilter(MessagingOptions.DEFAULT_DEDUP_CAPACITY, null);
+
+    // Registration and setup done, kept across configuration changes
+    private boolean mInitialized;
 
     public static MessagingFragment newInstance() {
         return new MessagingFragment();
     }
 
     protected static void send(Context context, String senderId, Bundle data) {
+        send(context, senderId, data, null);
+    }
+
+    protected static void send(Context context, String senderId, Bundle data,
+                               String orderingKey) {
         Intent intent = new Intent(context, MessageSenderService.class);
         intent.putExtra(SENDER_ID_ARG, senderId);
-        intent.putExtra(MESSAGE_ARG, data);
+        intent.putExtra(MESSAGE_PAYLOAD_ARG,
+                MessagingOptions.load(context).getCodec().encode(data));
+        intent.putExtra(ORDERING_KEY_ARG, orderingKey);
         intent.putExtra(GCM_PERMISSION_ARG, getGcmPermissionName(context));
         context.startService(intent);
     }
@@ -82,6 +106,14 @@ public class MessagingFragment extends Fragment {
         super();
     }
 
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        // Keep the registration and dispatcher when the Activity is re-created
+        setRetainInstance(true);
+    }
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
@@ -93,11 +125,24 @@ public class MessagingFragment extends Fragment {
             Log.w(TAG, "getArguments() returned null, not setting senderId");
         }
 
+        // Messaging options, for the background services. A re-created Activity may pass new
+        // options to the retained fragment.
+        saveOptionsIfChanged();
+
+        // A retained fragment has already done this for an earlier Activity
+        if (mInitialized) {
+            return;
+        }
+        mInitialized = true;
+
         // Messaging permission store
         PreferenceManager.getDefaultSharedPreferences(getActivity()).edit()
                 .putString(GCMUtils.PREF_KEY_GCM_PERMISSION, getGcmPermissionName(getActivity()))
                 .commit();
 
+        // Background delivery to the listener, if enabled
+        createDispatcherIfNeeded();
+
         mMessaging = new Messaging(this);
         if (mListener != null) {
             // TODO(afshar): how often do we want to do this?
@@ -109,8 +154,11 @@ public class MessagingFragment extends Fragment {
     public void onResume() {
         super.onResume();
 
+        // Only handle the launch intent once, not on every resume
         Intent intent = getActivity().getIntent();
-        if (intent != null && MESSAGE_RECEIVED.equals(intent.getAction())) {
+        if (intent != null && MESSAGE_RECEIVED.equals(intent.getAction())
+                && !intent.getBooleanExtra(MESSAGE_HANDLED_FIELD, false)) {
+            intent.putExtra(MESSAGE_HANDLED_FIELD, true);
             parseMessageIntent(intent);
         }
     }
@@ -119,19 +167,44 @@ public class MessagingFragment extends Fragment {
     public void onStart() {
         super.onStart();
 
-        // Register the local broadcast receiver
+        // Register for direct delivery, and the local broadcast receiver as a fallback
         registerReceiver();
+
+        // Deliver messages that arrived while no listener was registered, or keep them until
+        // there is a listener to deliver to
+        MessageInbox inbox = MessageInbox.get(getActivity(), mOptions);
+        if (inbox != null && mListener != null) {
+            for (ReceivedMessage message : inbox.drain()) {
+                onMessageReceived(message.getFrom(), message.getData(), 0);
+            }
+        }
     }
 
     @Override
     public void onStop() {
         super.onStop();
 
-        // Unregister the local broadcast receiver
+        // Unregister from direct delivery and the local broadcast receiver
+        MessageBus.getInstance().unregister(mBusListener);
         LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(mReceiver);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        if (mDispatcher != null) {
+            mDispatcher.quit();
+            mDispatcher = null;
+        }
+    }
+
     private void registerReceiver() {
+        if (mBusListener == null) {
+            mBusListener = new BusListener();
+        }
+        MessageBus.getInstance().register(mBusListener);
+
         if (mReceiver == null) {
             mReceiver = new MessageBroadcastReceiver();
         }
@@ -150,6 +223,47 @@ public class MessagingFragment extends Fragment {
 
     public void setMessagingListener(Messaging.MessagingListener messagingListener) {
         mListener = messagingListener;
+        if (mDispatcher != null) {
+            mDispatcher.setListener(messagingListener);
+        } else {
+            // The first listener may arrive after the fragment was created
+            createDispatcherIfNeeded();
+        }
+    }
+
+    /**
+     * Set the messaging options. They are saved for the background services once the fragment
+     * is created, or immediately if it already is, for example when a re-created Activity
+     * passes options to the retained fragment. A background dispatcher that already exists
+     * keeps its settings.
+     * @param options the messaging options.
+     */
+    public void setMessagingOptions(MessagingOptions options) {
+        mOptions = options;
+        mOptionsChanged = true;
+        if (mInitialized && getActivity() != null) {
+            saveOptionsIfChanged();
+            createDispatcherIfNeeded();
+        }
+    }
+
+    private void saveOptionsIfChanged() {
+        if (mOptionsChanged) {
+            mOptionsChanged = false;
+            mOptions.save(getActivity());
+        }
+    }
+
+    /**
+     * Start background delivery to the listener if it is enabled and there is a listener. Only
+     * done once the fragment is created, so that the options are final.
+     */
+    private void createDispatcherIfNeeded() {
+        if (mInitialized && mOptions.isBackgroundDispatchEnabled() && mListener != null
+                && mDispatcher == null) {
+            mDispatcher = new ListenerDispatcher(mListener, mOptions.getDispatchCapacity(),
+                    mOptions.getDispatchPolicy(), mOptions.getCoalesceKey());
+        }
     }
 
     public void setSenderId(String senderId) {
@@ -159,13 +273,17 @@ public class MessagingFragment extends Fragment {
     private void parseMessageIntent(Intent intent) {
         Bundle data = intent.getBundleExtra(MESSAGE_ARG);
         String from = intent.getStringExtra(MESSAGE_FROM_FIELD);
-        onMessageReceived(from, data);
+        onMessageReceived(from, data, intent.getLongExtra(MESSAGE_RECEIVED_AT_FIELD, 0));
     }
 
     public void send(Bundle data) {
         send(getActivity(), mSenderId, data);
     }
 
+    public void send(Bundle data, String orderingKey) {
+        send(getActivity(), mSenderId, data, orderingKey);
+    }
+
     public void subscribeTo(String topic) {
         Intent intent = new Intent(getActivity(), PubSubService.class);
         intent.setAction(getString(R.string.action_subscribe));
@@ -174,6 +292,11 @@ public class MessagingFragment extends Fragment {
         getActivity().startService(intent);
     }
 
+    public void setTopics(Set<String> topics) {
+        TopicStore.getInstance(getActivity()).setDesired(mSenderId, topics);
+        PubSubService.syncTopics(getActivity());
+    }
+
     public void unsubscribeFrom(String topic) {
         Intent intent = new Intent(getActivity(), PubSubService.class);
         intent.setAction(getString(R.string.action_unsubscribe));
@@ -182,15 +305,74 @@ public class MessagingFragment extends Fragment {
         getActivity().startService(intent);
     }
 
-    private void onMessageReceived(String from, Bundle data) {
+    private void onMessageReceived(String from, Bundle data, long receivedAt) {
         Log.d(TAG, "onMessageReceived:" + from + ":" + data);
-        mListener.onMessageReceived(from, data);
+        if (mListener == null) {
+            // Checked before the duplicate filter, so the message is delivered once there is one
+            Log.d(TAG, "No listener, keeping message in the inbox");
+            MessageInbox inbox = MessageInbox.get(getActivity(), mOptions);
+            if (inbox != null) {
+                inbox.add(from, data);
+            }
+            return;
+        }
+
+        if (mDeliveredFilter.isDuplicate(GCMUtils.getMessageId(data))) {
+            Log.d(TAG, "Dropping duplicate message");
+            return;
+        }
+
+        if (mDispatcher != null) {
+            mDispatcher.post(from, data, receivedAt);
+        } else {
+            GCMUtils.recordListenerLatency(receivedAt);
+            mListener.onMessageReceived(from, data);
+        }
+    }
+
+    /**
+     * @return the number of messages waiting for the listener when background dispatch is
+     * enabled, otherwise 0.
+     */
+    public int getPendingMessageCount() {
+        return mDispatcher != null ? mDispatcher.getDepth() : 0;
+    }
+
+    /**
+     * @return the largest number of messages that have waited for the listener at once when
+     * background dispatch is enabled, otherwise 0.
+     */
+    public int getMaxPendingMessageCount() {
+        return mDispatcher != null ? mDispatcher.getMaxDepth() : 0;
+    }
+
+    /**
+     * @return the number of messages dropped or coalesced because the listener fell behind
+     * when background dispatch is enabled, otherwise 0.
+     */
+    public long getDroppedMessageCount() {
+        return mDispatcher != null ? mDispatcher.getDroppedCount() : 0;
     }
 
     public Messaging getMessaging() {
         return mMessaging;
     }
 
+    // Records the latency itself once the message reaches the listener or the dispatcher does
+    private class BusListener implements Messaging.MessagingListener,
+            MessageBus.ForwardingListener {
+
+        @Override
+        public void onMessageReceived(String from, Bundle message) {
+            onMessageReceived(from, message, 0);
+        }
+
+        @Override
+        public void onMessageReceived(String from, Bundle message, long receivedAt) {
+            MessagingFragment.this.onMessageReceived(from, message, receivedAt);
+        }
+    }
+
     private class MessageBroadcastReceiver extends BroadcastReceiver {
 
         @Override
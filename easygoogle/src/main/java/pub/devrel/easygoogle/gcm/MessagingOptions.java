@@ -0,0 +1,476 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.util.Base64;
+
+/**
+ * Optional tuning for {@link Messaging}. Options are given to
+ * {@link pub.devrel.easygoogle.Google.Builder} and persisted by {@link MessagingFragment} so that
+ * the background GCM services, which may run without any Activity, can read them.
+ */
+public class MessagingOptions {
+
+    private static final String PREF_BATCH_WINDOW_MS = "gcm_batch_window_ms";
+    private static final String PREF_BATCH_MAX_COUNT = "gcm_batch_max_count";
+    private static final String PREF_BATCH_MAX_BYTES = "gcm_batch_max_bytes";
+    private static final String PREF_SEND_THREADS = "gcm_send_threads";
+    private static final String PREF_SEND_WINDOW = "gcm_send_window";
+    private static final String PREF_DEDUP_CAPACITY = "gcm_dedup_capacity";
+    private static final String PREF_DEDUP_PERSISTENT = "gcm_dedup_persistent";
+    private static final String PREF_COALESCE_WINDOW_MS = "gcm_coalesce_window_ms";
+    private static final String PREF_COALESCE_KEY = "gcm_coalesce_key";
+    private static final String PREF_CODEC = "gcm_codec";
+    private static final String PREF_COMPRESS_ENABLED = "gcm_compress_enabled";
+    private static final String PREF_COMPRESS_THRESHOLD = "gcm_compress_threshold";
+    private static final String PREF_COMPRESS_DICTIONARY = "gcm_compress_dictionary";
+    private static final String PREF_CHUNK_MAX_BYTES = "gcm_chunk_max_bytes";
+    private static final String PREF_REASSEMBLY_TIMEOUT_MS = "gcm_reassembly_timeout_ms";
+    private static final String PREF_REASSEMBLY_MAX_BYTES = "gcm_reassembly_max_bytes";
+    private static final String PREF_INBOX_MAX_COUNT = "gcm_inbox_max_count";
+    private static final String PREF_INBOX_MAX_AGE_MS = "gcm_inbox_max_age_ms";
+    private static final String PREF_INBOX_MAX_BYTES = "gcm_inbox_max_bytes";
+    private static final String PREF_DISPATCH_CAPACITY = "gcm_dispatch_capacity";
+    private static final String PREF_DISPATCH_POLICY = "gcm_dispatch_policy";
+
+    public static final int DEFAULT_BATCH_MAX_COUNT = 50;
+    public static final int DEFAULT_BATCH_MAX_BYTES = 256 * 1024;
+    public static final int DEFAULT_SEND_THREADS = 1;
+    public static final int DEFAULT_SEND_WINDOW = 20;
+    public static final int DEFAULT_DEDUP_CAPACITY = 256;
+    public static final int DEFAULT_COMPRESS_THRESHOLD = 512;
+    // Chunking changes the upstream wire format, so it is off unless the server opts in
+    public static final int DEFAULT_CHUNK_MAX_BYTES = 0;
+    // GCM payloads are limited to 4KB, leave room for fields added by GCM
+    public static final int RECOMMENDED_CHUNK_MAX_BYTES = 3584;
+    public static final long DEFAULT_REASSEMBLY_TIMEOUT_MS = 5 * 60 * 1000;
+    public static final int DEFAULT_REASSEMBLY_MAX_BYTES = 256 * 1024;
+    public static final long DEFAULT_INBOX_MAX_AGE_MS = 24 * 60 * 60 * 1000;
+    public static final int DEFAULT_INBOX_MAX_BYTES = 256 * 1024;
+
+    // Key GCM uses for the collapse key of a downstream message
+    public static final String KEY_COLLAPSE_KEY = "collapse_key";
+
+    // Collapse key GCM sets on ordinary messages, which must never replace each other
+    public static final String VALUE_DO_NOT_COLLAPSE = "do_not_collapse";
+
+    private long mBatchWindowMs;
+    private int mBatchMaxCount = DEFAULT_BATCH_MAX_COUNT;
+    private int mBatchMaxBytes = DEFAULT_BATCH_MAX_BYTES;
+    private int mSendThreads = DEFAULT_SEND_THREADS;
+    private int mSendWindow = DEFAULT_SEND_WINDOW;
+    private int mDedupCapacity = DEFAULT_DEDUP_CAPACITY;
+    private boolean mDedupPersistent;
+    private long mCoalesceWindowMs;
+    private String mCoalesceKey = KEY_COLLAPSE_KEY;
+    private String mCodec = BinaryMessageCodec.class.getName();
+    private boolean mCompressEnabled;
+    private int mCompressThreshold = DEFAULT_COMPRESS_THRESHOLD;
+    private String mCompressDictionary;
+    private int mChunkMaxBytes = DEFAULT_CHUNK_MAX_BYTES;
+    private long mReassemblyTimeoutMs = DEFAULT_REASSEMBLY_TIMEOUT_MS;
+    private int mReassemblyMaxBytes = DEFAULT_REASSEMBLY_MAX_BYTES;
+    private int mInboxMaxCount;
+    private long mInboxMaxAgeMs = DEFAULT_INBOX_MAX_AGE_MS;
+    private int mInboxMaxBytes = DEFAULT_INBOX_MAX_BYTES;
+    private int mDispatchCapacity;
+    private ListenerDispatcher.OverflowPolicy mDispatchPolicy =
+            ListenerDispatcher.OverflowPolicy.DROP_OLDEST;
+
+    public static class Builder {
+
+        private MessagingOptions mOptions = new MessagingOptions();
+
+        public Builder() {}
+
+        /**
+         * Deliver inbound messages to {@link EasyMessageService} in batches rather than one at a
+         * time. Messages arriving within {@code windowMs} of the first message in a batch are
+         * delivered together through {@link EasyMessageService#onMessagesReceived(java.util.List)}.
+         * A batch is delivered early once it holds {@code maxCount} messages or roughly
+         * {@code maxBytes} of payload.
+         * @param windowMs how long to wait for more messages, in milliseconds. 0 disables batching.
+         * @param maxCount maximum number of messages in a single batch.
+         * @param maxBytes approximate maximum payload size of a single batch.
+         * @return self, for chaining.
+         */
+        public Builder setBatching(long windowMs, int maxCount, int maxBytes) {
+            if (windowMs < 0 || maxCount < 1 || maxBytes < 1) {
+                throw new IllegalArgumentException("Invalid batching parameters");
+            }
+
+            mOptions.mBatchWindowMs = windowMs;
+            mOptions.mBatchMaxCount = maxCount;
+            mOptions.mBatchMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Send upstream messages concurrently. Messages passed to
+         * {@link Messaging#send(android.os.Bundle, String)} with the same ordering key are
+         * always sent in order; messages with different keys, or without a key, may be sent in
+         * parallel.
+         * @param threads number of threads used to send messages, 1 sends serially.
+         * @param window maximum number of messages being sent or waiting for an earlier message
+         *               with the same key.
+         * @return self, for chaining.
+         */
+        public Builder setSendConcurrency(int threads, int window) {
+            if (threads < 1 || window < 1) {
+                throw new IllegalArgumentException("Invalid concurrency parameters");
+            }
+
+            mOptions.mSendThreads = threads;
+            mOptions.mSendWindow = window;
+            return this;
+        }
+
+        /**
+         * Configure the filter that drops redelivered inbound messages before they reach
+         * {@link EasyMessageService}. By default the last {@link #DEFAULT_DEDUP_CAPACITY}
+         * messages are remembered in memory.
+         * @param capacity number of messages to remember, 0 disables duplicate filtering.
+         * @param persistent true to also remember messages across process restarts.
+         * @return self, for chaining.
+         */
+        public Builder setDuplicateFilter(int capacity, boolean persistent) {
+            if (capacity < 0) {
+                throw new IllegalArgumentException("Invalid duplicate filter capacity");
+            }
+
+            mOptions.mDedupCapacity = capacity;
+            mOptions.mDedupPersistent = persistent;
+            return this;
+        }
+
+        /**
+         * Coalesce inbound messages that replace each other. Messages with the same value for
+         * {@code keyField} that arrive within {@code windowMs} of each other are collapsed so
+         * that only the latest one is delivered to {@link EasyMessageService}. Messages without
+         * the field, or with the GCM value {@link #VALUE_DO_NOT_COLLAPSE}, are delivered
+         * immediately. Replaced messages are counted as
+         * {@link pub.devrel.easygoogle.EasyGoogleMetrics#GCM_MESSAGES_COALESCED}.
+         * @param windowMs how long to hold a message waiting for a replacement, in milliseconds.
+         *                 0 disables coalescing.
+         * @param keyField the data field to coalesce on, or null to use the GCM collapse key.
+         * @return self, for chaining.
+         */
+        public Builder setCoalescing(long windowMs, String keyField) {
+            if (windowMs < 0) {
+                throw new IllegalArgumentException("Invalid coalescing window");
+            }
+
+            mOptions.mCoalesceWindowMs = windowMs;
+            mOptions.mCoalesceKey = keyField != null ? keyField : KEY_COLLAPSE_KEY;
+            return this;
+        }
+
+        /**
+         * Set the codec used to carry message data between the EasyGoogle GCM services.
+         * Defaults to {@link BinaryMessageCodec}.
+         * @param codec a MessageCodec subclass with a public no-argument constructor.
+         * @return self, for chaining.
+         */
+        public Builder setCodec(Class<? extends MessageCodec> codec) {
+            mOptions.mCodec = codec.getName();
+            return this;
+        }
+
+        /**
+         * Compress upstream messages sent with {@link Messaging#send(android.os.Bundle)}, see
+         * {@link PayloadCompressor} for the format. Compressed downstream messages are always
+         * decompressed before delivery, using the dictionary given here if any.
+         * @param thresholdBytes messages smaller than this are sent uncompressed.
+         * @param dictionary preset deflate dictionary shared with the server, may be null.
+         * @return self, for chaining.
+         */
+        public Builder setCompression(int thresholdBytes, byte[] dictionary) {
+            if (thresholdBytes < 0) {
+                throw new IllegalArgumentException("Invalid compression threshold");
+            }
+
+            mOptions.mCompressEnabled = true;
+            mOptions.mCompressThreshold = thresholdBytes;
+            mOptions.mCompressDictionary = dictionary == null
+                    ? null
+                    : Base64.encodeToString(dictionary, Base64.NO_WRAP);
+            return this;
+        }
+
+        /**
+         * Configure how large messages are split and reassembled, see {@link MessageChunker}.
+         * Upstream chunking is disabled by default because the server has to reassemble the
+         * chunks; {@link #RECOMMENDED_CHUNK_MAX_BYTES} fits the GCM payload limit.
+         * @param maxChunkBytes maximum size of a single upstream message, 0 disables chunking.
+         * @param reassemblyTimeoutMs how long to wait for the remaining chunks of a downstream
+         *                            message before discarding it, in milliseconds.
+         * @param reassemblyMaxBytes maximum memory used by partially received messages.
+         * @return self, for chaining.
+         */
+        public Builder setChunking(int maxChunkBytes, long reassemblyTimeoutMs,
+                                   int reassemblyMaxBytes) {
+            if ((maxChunkBytes != 0 && maxChunkBytes <= 2 * MessageChunker.CHUNK_OVERHEAD_BYTES)
+                    || reassemblyTimeoutMs < 1 || reassemblyMaxBytes < 1) {
+                throw new IllegalArgumentException("Invalid chunking parameters");
+            }
+
+            mOptions.mChunkMaxBytes = maxChunkBytes;
+            mOptions.mReassemblyTimeoutMs = reassemblyTimeoutMs;
+            mOptions.mReassemblyMaxBytes = reassemblyMaxBytes;
+            return this;
+        }
+
+        /**
+         * Keep messages passed to {@link EasyMessageService#forwardToListener(String,
+         * android.os.Bundle)} while no listener is registered, and deliver them to the
+         * {@link Messaging.MessagingListener} when its Activity next starts. See
+         * {@link MessageInbox}.
+         * @param maxCount maximum number of messages to keep, 0 disables the inbox.
+         * @param maxAgeMs messages older than this are discarded, in milliseconds.
+         * @param maxBytes size of the inbox file.
+         * @return self, for chaining.
+         */
+        public Builder setInbox(int maxCount, long maxAgeMs, int maxBytes) {
+            if (maxCount < 0 || maxAgeMs < 1 || maxBytes < 1024) {
+                throw new IllegalArgumentException("Invalid inbox parameters");
+            }
+
+            mOptions.mInboxMaxCount = maxCount;
+            mOptions.mInboxMaxAgeMs = maxAgeMs;
+            mOptions.mInboxMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Deliver messages to the {@link Messaging.MessagingListener} on a background thread
+         * instead of the main thread, see {@link ListenerDispatcher}. The listener must then
+         * post any UI work to the main thread itself.
+         * @param capacity maximum number of messages waiting for the listener, 0 delivers on
+         *                 the main thread.
+         * @param policy what to do with new messages when {@code capacity} is reached.
+         * @return self, for chaining.
+         */
+        public Builder setBackgroundDispatch(int capacity,
+                                             ListenerDispatcher.OverflowPolicy policy) {
+            if (capacity < 0 || policy == null) {
+                throw new IllegalArgumentException("Invalid dispatch parameters");
+            }
+
+            mOptions.mDispatchCapacity = capacity;
+            mOptions.mDispatchPolicy = policy;
+            return this;
+        }
+
+        public MessagingOptions build() {
+            return mOptions;
+        }
+    }
+
+    private MessagingOptions() {}
+
+    /**
+     * Load the options most recently saved by {@link #save(Context)}, or the defaults if
+     * there are none.
+     * @param context calling Context.
+     * @return a MessagingOptions instance.
+     */
+    public static MessagingOptions load(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        MessagingOptions options = new MessagingOptions();
+        options.mBatchWindowMs = prefs.getLong(PREF_BATCH_WINDOW_MS, 0);
+        options.mBatchMaxCount = prefs.getInt(PREF_BATCH_MAX_COUNT, DEFAULT_BATCH_MAX_COUNT);
+        options.mBatchMaxBytes = prefs.getInt(PREF_BATCH_MAX_BYTES, DEFAULT_BATCH_MAX_BYTES);
+        options.mSendThreads = prefs.getInt(PREF_SEND_THREADS, DEFAULT_SEND_THREADS);
+        options.mSendWindow = prefs.getInt(PREF_SEND_WINDOW, DEFAULT_SEND_WINDOW);
+        options.mDedupCapacity = prefs.getInt(PREF_DEDUP_CAPACITY, DEFAULT_DEDUP_CAPACITY);
+        options.mDedupPersistent = prefs.getBoolean(PREF_DEDUP_PERSISTENT, false);
+        options.mCoalesceWindowMs = prefs.getLong(PREF_COALESCE_WINDOW_MS, 0);
+        options.mCoalesceKey = prefs.getString(PREF_COALESCE_KEY, KEY_COLLAPSE_KEY);
+        options.mCodec = prefs.getString(PREF_CODEC, BinaryMessageCodec.class.getName());
+        options.mCompressEnabled = prefs.getBoolean(PREF_COMPRESS_ENABLED, false);
+        options.mCompressThreshold = prefs.getInt(PREF_COMPRESS_THRESHOLD,
+                DEFAULT_COMPRESS_THRESHOLD);
+        options.mCompressDictionary = prefs.getString(PREF_COMPRESS_DICTIONARY, null);
+        options.mChunkMaxBytes = prefs.getInt(PREF_CHUNK_MAX_BYTES, DEFAULT_CHUNK_MAX_BYTES);
+        options.mReassemblyTimeoutMs = prefs.getLong(PREF_REASSEMBLY_TIMEOUT_MS,
+                DEFAULT_REASSEMBLY_TIMEOUT_MS);
+        options.mReassemblyMaxBytes = prefs.getInt(PREF_REASSEMBLY_MAX_BYTES,
+                DEFAULT_REASSEMBLY_MAX_BYTES);
+        options.mInboxMaxCount = prefs.getInt(PREF_INBOX_MAX_COUNT, 0);
+        options.mInboxMaxAgeMs = prefs.getLong(PREF_INBOX_MAX_AGE_MS, DEFAULT_INBOX_MAX_AGE_MS);
+        options.mInboxMaxBytes = prefs.getInt(PREF_INBOX_MAX_BYTES, DEFAULT_INBOX_MAX_BYTES);
+        options.mDispatchCapacity = prefs.getInt(PREF_DISPATCH_CAPACITY, 0);
+        options.mDispatchPolicy = ListenerDispatcher.OverflowPolicy.valueOf(prefs.getString(
+                PREF_DISPATCH_POLICY, ListenerDispatcher.OverflowPolicy.DROP_OLDEST.name()));
+        return options;
+    }
+
+    /**
+     * Persist these options for use by the background GCM services.
+     * @param context calling Context.
+     */
+    public void save(Context context) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putLong(PREF_BATCH_WINDOW_MS, mBatchWindowMs)
+                .putInt(PREF_BATCH_MAX_COUNT, mBatchMaxCount)
+                .putInt(PREF_BATCH_MAX_BYTES, mBatchMaxBytes)
+                .putInt(PREF_SEND_THREADS, mSendThreads)
+                .putInt(PREF_SEND_WINDOW, mSendWindow)
+                .putInt(PREF_DEDUP_CAPACITY, mDedupCapacity)
+                .putBoolean(PREF_DEDUP_PERSISTENT, mDedupPersistent)
+                .putLong(PREF_COALESCE_WINDOW_MS, mCoalesceWindowMs)
+                .putString(PREF_COALESCE_KEY, mCoalesceKey)
+                .putString(PREF_CODEC, mCodec)
+                .putBoolean(PREF_COMPRESS_ENABLED, mCompressEnabled)
+                .putInt(PREF_COMPRESS_THRESHOLD, mCompressThreshold)
+                .putString(PREF_COMPRESS_DICTIONARY, mCompressDictionary)
+                .putInt(PREF_CHUNK_MAX_BYTES, mChunkMaxBytes)
+                .putLong(PREF_REASSEMBLY_TIMEOUT_MS, mReassemblyTimeoutMs)
+                .putInt(PREF_REASSEMBLY_MAX_BYTES, mReassemblyMaxBytes)
+                .putInt(PREF_INBOX_MAX_COUNT, mInboxMaxCount)
+                .putLong(PREF_INBOX_MAX_AGE_MS, mInboxMaxAgeMs)
+                .putInt(PREF_INBOX_MAX_BYTES, mInboxMaxBytes)
+                .putInt(PREF_DISPATCH_CAPACITY, mDispatchCapacity)
+                .putString(PREF_DISPATCH_POLICY, mDispatchPolicy.name())
+                .apply();
+    }
+
+    public boolean isBatchingEnabled() {
+        return mBatchWindowMs > 0;
+    }
+
+    public long getBatchWindowMs() {
+        return mBatchWindowMs;
+    }
+
+    public int getBatchMaxCount() {
+        return mBatchMaxCount;
+    }
+
+    public int getBatchMaxBytes() {
+        return mBatchMaxBytes;
+    }
+
+    public int getSendThreads() {
+        return mSendThreads;
+    }
+
+    public int getSendWindow() {
+        return mSendWindow;
+    }
+
+    public int getDuplicateFilterCapacity() {
+        return mDedupCapacity;
+    }
+
+    public boolean isDuplicateFilterPersistent() {
+        return mDedupPersistent;
+    }
+
+    public boolean isCoalescingEnabled() {
+        return mCoalesceWindowMs > 0;
+    }
+
+    public long getCoalesceWindowMs() {
+        return mCoalesceWindowMs;
+    }
+
+    public String getCoalesceKey() {
+        return mCoalesceKey;
+    }
+
+    /**
+     * Get the value that identifies messages replacing each other.
+     * @param data message data.
+     * @param keyField the data field to coalesce on, see {@link #getCoalesceKey()}.
+     * @return the value, or null if the message must not be coalesced with any other.
+     */
+    static String getCoalesceValue(Bundle data, String keyField) {
+        String value = data.getString(keyField);
+        if (VALUE_DO_NOT_COLLAPSE.equals(value)) {
+            return null;
+        }
+
+        return value;
+    }
+
+    public MessageCodec getCodec() {
+        return MessageCodec.forName(mCodec);
+    }
+
+    public boolean isCompressionEnabled() {
+        return mCompressEnabled;
+    }
+
+    /**
+     * @return a compressor configured with the compression threshold and dictionary.
+     */
+    public PayloadCompressor getCompressor() {
+        byte[] dictionary = mCompressDictionary == null
+                ? null
+                : Base64.decode(mCompressDictionary, Base64.NO_WRAP);
+        return new PayloadCompressor(mCompressThreshold, dictionary);
+    }
+
+    public boolean isChunkingEnabled() {
+        return mChunkMaxBytes > 0;
+    }
+
+    public int getChunkMaxBytes() {
+        return mChunkMaxBytes;
+    }
+
+    public long getReassemblyTimeoutMs() {
+        return mReassemblyTimeoutMs;
+    }
+
+    public int getReassemblyMaxBytes() {
+        return mReassemblyMaxBytes;
+    }
+
+    public boolean isInboxEnabled() {
+        return mInboxMaxCount > 0;
+    }
+
+    public int getInboxMaxCount() {
+        return mInboxMaxCount;
+    }
+
+    public long getInboxMaxAgeMs() {
+        return mInboxMaxAgeMs;
+    }
+
+    public int getInboxMaxBytes() {
+        return mInboxMaxBytes;
+    }
+
+    public boolean isBackgroundDispatchEnabled() {
+        return mDispatchCapacity > 0;
+    }
+
+    public int getDispatchCapacity() {
+        return mDispatchCapacity;
+    }
+
+    public ListenerDispatcher.OverflowPolicy getDispatchPolicy() {
+        return mDispatchPolicy;
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pub.devrel.easygoogle.EasyGoogleMetrics;
+
+/**
+ * Persistent FIFO of upstream messages waiting to be sent by {@link MessageSenderService}.
+ * Messages are written to a SQLite database before any send is attempted, so they survive
+ * process death. A message handed to GCM is only marked as sent; it is removed once GCM
+ * acknowledges it, see {@link #acknowledge(String)}, and becomes pending again if GCM reports
+ * an error or never acknowledges it.
+ *
+ * All methods perform disk I/O and should not be called on the main thread.
+ */
+public class OutboundQueue {
+
+    private static final String TAG = "OutboundQueue";
+
+    // Messages that fail this many times are dropped from the queue
+    public static final int MAX_ATTEMPTS = 10;
+
+    private static final String DB_NAME = "easygoogle_outbound.db";
+    private static final int DB_VERSION = 1;
+
+    private static final String TABLE = "outbound";
+    private static final String COL_ID = "_id";
+    private static final String COL_TO = "recipient";
+    private static final String COL_MESSAGE_ID = "message_id";
+    private static final String COL_ORDERING_KEY = "ordering_key";
+    private static final String COL_DATA = "data";
+    private static final String COL_CREATED = "created";
+    private static final String COL_ATTEMPTS = "attempts";
+    // Time the message was handed to GCM, 0 while it is pending
+    private static final String COL_SENT_AT = "sent_at";
+
+    private static final String[] COLUMNS = new String[]{
+            COL_ID, COL_TO, COL_MESSAGE_ID, COL_ORDERING_KEY, COL_DATA, COL_CREATED, COL_ATTEMPTS};
+
+    private static final String WHERE_PENDING = COL_SENT_AT + " = 0";
+    private static final String WHERE_MESSAGE_ID = COL_MESSAGE_ID + " = ?";
+    private static final String WHERE_ROW_ID = COL_ID + " = ?";
+    private static final String WHERE_TIMED_OUT = COL_SENT_AT + " != 0 AND " + COL_SENT_AT + " < ?";
+
+    private static OutboundQueue sInstance;
+
+    private final DbHelper mHelper;
+
+    /**
+     * A message waiting in the queue.
+     */
+    public static class Entry implements SendEngine.Message {
+
+        private final long mRowId;
+        private final String mTo;
+        private final String mMessageId;
+        private final String mOrderingKey;
+        private final Bundle mData;
+        private final long mCreated;
+        private final int mAttempts;
+
+        private Entry(long rowId, String to, String messageId, String orderingKey, Bundle data,
+                      long created, int attempts) {
+            mRowId = rowId;
+            mTo = to;
+            mMessageId = messageId;
+            mOrderingKey = orderingKey;
+            mData = data;
+            mCreated = created;
+            mAttempts = attempts;
+        }
+
+        public String getTo() {
+            return mTo;
+        }
+
+        public String getMessageId() {
+            return mMessageId;
+        }
+
+        @Override
+        public String getOrderingKey() {
+            return mOrderingKey;
+        }
+
+        public Bundle getData() {
+            return mData;
+        }
+
+        public long getCreated() {
+            return mCreated;
+        }
+
+        public int getAttempts() {
+            return mAttempts;
+        }
+    }
+
+    public static synchronized OutboundQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new OutboundQueue(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private OutboundQueue(Context context) {
+        mHelper = new DbHelper(context);
+    }
+
+    /**
+     * Append a message to the end of the queue.
+     * @param to the GCM address to send to.
+     * @param messageId the upstream message ID, kept for the lifetime of the entry so that
+     *                  retries can be de-duplicated by the server.
+     * @param orderingKey messages with the same key are always sent in order, may be null in
+     *                    which case the message is not ordered relative to any other.
+     * @param data message data, all values are sent as strings.
+     */
+    public void enqueue(String to, String messageId, String orderingKey, Bundle data) {
+        ContentValues values = new ContentValues();
+        values.put(COL_TO, to);
+        values.put(COL_MESSAGE_ID, messageId);
+        values.put(COL_ORDERING_KEY, orderingKey != null ? orderingKey : messageId);
+        values.put(COL_DATA, GCMUtils.toJson(data));
+        values.put(COL_CREATED, System.currentTimeMillis());
+        values.put(COL_ATTEMPTS, 0);
+
+        mHelper.getWritableDatabase().insert(TABLE, null, values);
+    }
+
+    /**
+     * Get the messages waiting to be sent as a {@link SendEngine.Source}. Each message is
+     * returned once, messages queued while sending are included.
+     * @return a new source, starting at the oldest message.
+     */
+    public SendEngine.Source<Entry> getPending() {
+        return new SendEngine.Source<Entry>() {
+            private long mLastRowId;
+
+            @Override
+            public List<Entry> next(int limit) {
+                List<Entry> entries = peek(mLastRowId, limit);
+                if (!entries.isEmpty()) {
+                    mLastRowId = entries.get(entries.size() - 1).mRowId;
+                }
+
+                return entries;
+            }
+        };
+    }
+
+    private List<Entry> peek(long afterRowId, int limit) {
+        List<Entry> entries = new ArrayList<>();
+        Cursor cursor = mHelper.getReadableDatabase().query(TABLE, COLUMNS,
+                WHERE_PENDING + " AND " + COL_ID + " > ?",
+                new String[]{Long.toString(afterRowId)},
+                null, null, COL_ID + " ASC", Integer.toString(limit));
+        try {
+            while (cursor.moveToNext()) {
+                entries.add(new Entry(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                        cursor.getString(3), decode(cursor.getString(4)), cursor.getLong(5),
+                        cursor.getInt(6)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return entries;
+    }
+
+    /**
+     * Mark messages as handed to GCM, in a single transaction. They are kept until
+     * acknowledged, but no longer returned by {@link #getPending()}.
+     * @param entries the entries that were sent.
+     */
+    public void markSent(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(COL_SENT_AT, System.currentTimeMillis());
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Entry entry : entries) {
+                db.update(TABLE, values, WHERE_ROW_ID,
+                        new String[]{Long.toString(entry.mRowId)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Remove a message that GCM has acknowledged.
+     * @param messageId the upstream message ID.
+     * @return true if the message was in the queue.
+     */
+    public boolean acknowledge(String messageId) {
+        return mHelper.getWritableDatabase().delete(TABLE, WHERE_MESSAGE_ID,
+                new String[]{messageId}) > 0;
+    }
+
+    /**
+     * Make a message that GCM could not deliver pending again, recording a failed attempt. It
+     * keeps its place in the queue and its message ID. After {@link #MAX_ATTEMPTS} failed
+     * attempts the message is dropped instead.
+     * @param messageId the upstream message ID.
+     * @return the total number of failed attempts for the message, or 0 if it is not in the
+     * queue or was dropped.
+     */
+    public int requeue(String messageId) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        String[] args = new String[]{messageId};
+        int attempts;
+        Cursor cursor = db.query(TABLE, new String[]{COL_ATTEMPTS}, WHERE_MESSAGE_ID, args,
+                null, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return 0;
+            }
+            attempts = cursor.getInt(0) + 1;
+        } finally {
+            cursor.close();
+        }
+
+        if (attempts >= MAX_ATTEMPTS) {
+            db.delete(TABLE, WHERE_MESSAGE_ID, args);
+            onDropped("message " + messageId, 1);
+            return 0;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(COL_SENT_AT, 0);
+        values.put(COL_ATTEMPTS, attempts);
+        db.update(TABLE, values, WHERE_MESSAGE_ID, args);
+        return attempts;
+    }
+
+    /**
+     * Make messages pending again that GCM has not acknowledged within a timeout, recording a
+     * failed attempt for each. They are sent again with the same message ID, so the server can
+     * drop duplicates. Messages that reach {@link #MAX_ATTEMPTS} are dropped instead.
+     * @param timeoutMs how long to wait for an acknowledgement, in milliseconds.
+     * @return the number of messages made pending.
+     */
+    public int requeueUnacknowledged(long timeoutMs) {
+        String sentBefore = Long.toString(System.currentTimeMillis() - timeoutMs);
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            int dropped = db.delete(TABLE, WHERE_TIMED_OUT + " AND " + COL_ATTEMPTS + " >= ?",
+                    new String[]{sentBefore, Integer.toString(MAX_ATTEMPTS - 1)});
+            if (dropped > 0) {
+                onDropped(dropped + " unacknowledged messages", dropped);
+            }
+
+            SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE + " SET "
+                    + COL_SENT_AT + " = 0, " + COL_ATTEMPTS + " = " + COL_ATTEMPTS + " + 1"
+                    + " WHERE " + WHERE_TIMED_OUT);
+            int requeued;
+            try {
+                statement.bindString(1, sentBefore);
+                requeued = statement.executeUpdateDelete();
+            } finally {
+                statement.close();
+            }
+
+            db.setTransactionSuccessful();
+            return requeued;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the number of messages sent and waiting for GCM to acknowledge them.
+     */
+    public long getUnacknowledgedCount() {
+        return DatabaseUtils.queryNumEntries(mHelper.getReadableDatabase(), TABLE,
+                COL_SENT_AT + " != 0");
+    }
+
+    /**
+     * Record a failed send attempt for a message. After {@link #MAX_ATTEMPTS} failed attempts
+     * the message is dropped.
+     * @param entry the entry that could not be sent.
+     * @return the total number of failed attempts for this entry.
+     */
+    public int recordFailure(Entry entry) {
+        int attempts = entry.mAttempts + 1;
+        String[] args = new String[]{Long.toString(entry.mRowId)};
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        if (attempts >= MAX_ATTEMPTS) {
+            db.delete(TABLE, WHERE_ROW_ID, args);
+            onDropped("message " + entry.mMessageId, 1);
+        } else {
+            ContentValues values = new ContentValues();
+            values.put(COL_ATTEMPTS, attempts);
+            db.update(TABLE, values, WHERE_ROW_ID, args);
+        }
+
+        return attempts;
+    }
+
+    /**
+     * @return the number of messages waiting to be sent or acknowledged.
+     */
+    public long getDepth() {
+        return DatabaseUtils.queryNumEntries(mHelper.getReadableDatabase(), TABLE);
+    }
+
+    /**
+     * @return the age in milliseconds of the oldest message waiting to be sent, or 0 if the
+     * queue is empty.
+     */
+    public long getOldestEntryAge() {
+        long created = DatabaseUtils.longForQuery(mHelper.getReadableDatabase(),
+                "SELECT IFNULL(MIN(" + COL_CREATED + "), 0) FROM " + TABLE, null);
+        if (created == 0) {
+            return 0;
+        }
+
+        return Math.max(0, System.currentTimeMillis() - created);
+    }
+
+    private static void onDropped(String what, int count) {
+        Log.w(TAG, "Dropping " + what + " after " + MAX_ATTEMPTS + " failed attempts");
+        EasyGoogleMetrics.increment(EasyGoogleMetrics.GCM_SEND_DROPS, count);
+    }
+
+    private static Bundle decode(String encoded) {
+        try {
+            return GCMUtils.fromJson(encoded, new Bundle());
+        } catch (JSONException e) {
+            Log.e(TAG, "Could not decode message data", e);
+            return new Bundle();
+        }
+    }
+
+    private static class DbHelper extends SQLiteOpenHelper {
+
+        DbHelper(Context context) {
+            super(context, DB_NAME, null, DB_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE + " ("
+                    + COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + COL_TO + " TEXT NOT NULL, "
+                    + COL_MESSAGE_ID + " TEXT NOT NULL, "
+                    + COL_ORDERING_KEY + " TEXT NOT NULL, "
+                    + COL_DATA + " TEXT NOT NULL, "
+                    + COL_CREATED + " INTEGER NOT NULL, "
+                    + COL_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, "
+                    + COL_SENT_AT + " INTEGER NOT NULL DEFAULT 0)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // Only one version so far
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Receiver for {@link Intent#ACTION_MY_PACKAGE_REPLACED}. An app update is the only time the
+ * set of declared services can change, so this is where cached package state is dropped.
+ */
+public class PackageReplacedReceiver extends BroadcastReceiver {
+
+    private static final String TAG = "PackageReplacedReceiver";
+
+    public PackageReplacedReceiver() {}
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (Intent.ACTION_MY_PACKAGE_REPLACED.equals(intent.getAction())) {
+            Log.d(TAG, "Package replaced, invalidating service registry.");
+            ServiceRegistry.getInstance(context).invalidate();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.os.Bundle;
+import android.os.Debug;
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import pub.devrel.easygoogle.EasyGoogleMetrics;
+
+/**
+ * Compresses message data to fit more into a GCM payload. A compressed message has a single
+ * field, {@link #KEY_COMPRESSED}, holding the Base64 encoding of the zlib-deflated JSON object of
+ * the original fields. When a preset dictionary is configured the same dictionary must be used
+ * on the other end. Servers may send compressed downstream messages in the same format, other
+ * top-level fields (such as those added by GCM) are kept alongside the decompressed fields.
+ * Decompressed data is limited to {@link #MAX_DECOMPRESSED_BYTES}, so a small message cannot
+ * expand into an arbitrary amount of memory.
+ *
+ * Bytes saved and CPU time are recorded in {@link EasyGoogleMetrics}.
+ */
+public class PayloadCompressor {
+
+    private static final String TAG = "PayloadCompressor";
+
+    public static final String KEY_COMPRESSED = "easygoogle_deflate";
+
+    // A few times the 4KB GCM payload limit
+    public static final int MAX_DECOMPRESSED_BYTES = 16 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int mThreshold;
+    private final byte[] mDictionary;
+
+    /**
+     * Create a compressor.
+     * @param threshold messages smaller than this many bytes are not compressed.
+     * @param dictionary preset deflate dictionary, may be null.
+     */
+    public PayloadCompressor(int threshold, byte[] dictionary) {
+        mThreshold = threshold;
+        mDictionary = dictionary;
+    }
+
+    /**
+     * Compress message data, if it is over the size threshold and compression makes it smaller.
+     * @param data arbitrary message data.
+     * @return the compressed data, or {@code data} if it was not compressed.
+     */
+    public Bundle compress(Bundle data) {
+        long start = Debug.threadCpuTimeNanos();
+        try {
+            byte[] raw = GCMUtils.toJson(data).getBytes(UTF_8);
+            if (raw.length < mThreshold) {
+                return data;
+            }
+
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try {
+                if (mDictionary != null) {
+                    deflater.setDictionary(mDictionary);
+                }
+                deflater.setInput(raw);
+                deflater.finish();
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+                byte[] buffer = new byte[1024];
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(buffer);
+                    out.write(buffer, 0, count);
+                }
+
+                String compressed = Base64.encodeToString(out.toByteArray(), Base64.NO_WRAP);
+                int saved = raw.length - compressed.length() - KEY_COMPRESSED.length();
+                if (saved <= 0) {
+                    return data;
+                }
+
+                EasyGoogleMetrics.increment(EasyGoogleMetrics.GCM_COMPRESSION_BYTES_SAVED, saved);
+                Bundle result = new Bundle();
+                result.putString(KEY_COMPRESSED, compressed);
+                return result;
+            } finally {
+                deflater.end();
+            }
+        } finally {
+            EasyGoogleMetrics.increment(EasyGoogleMetrics.GCM_COMPRESS_CPU_NS,
+                    Debug.threadCpuTimeNanos() - start);
+        }
+    }
+
+    /**
+     * Decompress message data if it was compressed, see {@link #isCompressed(Bundle)}.
+     * @param data message data as received.
+     * @return the original message data, or {@code data} if it was not compressed or could
+     * not be decompressed, including when it expands past {@link #MAX_DECOMPRESSED_BYTES}.
+     */
+    public Bundle decompress(Bundle data) {
+        if (!isCompressed(data)) {
+            return data;
+        }
+
+        long start = Debug.threadCpuTimeNanos();
+        Inflater inflater = new Inflater();
+        try {
+            byte[] compressed = Base64.decode(data.getString(KEY_COMPRESSED), Base64.NO_WRAP);
+            inflater.setInput(compressed);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    Math.min(compressed.length * 4, MAX_DECOMPRESSED_BYTES));
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0) {
+                    if (inflater.needsDictionary() && mDictionary != null) {
+                        inflater.setDictionary(mDictionary);
+                    } else if (inflater.needsInput() || inflater.needsDictionary()) {
+                        throw new DataFormatException("Truncated data or missing dictionary");
+                    }
+                }
+                if (out.size() + count > MAX_DECOMPRESSED_BYTES) {
+                    throw new DataFormatException("Decompressed data too large");
+                }
+                out.write(buffer, 0, count);
+            }
+
+            Bundle result = new Bundle(data);
+            result.remove(KEY_COMPRESSED);
+            return GCMUtils.fromJson(new String(out.toByteArray(), UTF_8), result);
+        } catch (DataFormatException | JSONException | IllegalArgumentException e) {
+            Log.e(TAG, "Could not decompress message data", e);
+            EasyGoogleMetrics.increment(EasyGoogleMetrics.GCM_DECOMPRESSION_FAILURES);
+            return data;
+        } finally {
+            inflater.end();
+            EasyGoogleMetrics.increment(EasyGoogleMetrics.GCM_DECOMPRESS_CPU_NS,
+                    Debug.threadCpuTimeNanos() - start);
+        }
+    }
+
+    /**
+     * @param data message data.
+     * @return true if the data was produced by {@link #compress(Bundle)}.
+     */
+    public static boolean isCompressed(Bundle data) {
+        return data.getString(KEY_COMPRESSED) != null;
+    }
+}
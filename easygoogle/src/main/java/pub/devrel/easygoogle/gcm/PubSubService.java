@@ -1,14 +1,16 @@
 package pub.devrel.easygoogle.gcm;
 
+import android.app.AlarmManager;
 import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.google.android.gms.gcm.GcmPubSub;
-import com.google.android.gms.gcm.GoogleCloudMessaging;
-import com.google.android.gms.iid.InstanceID;
-
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
 
 import pub.devrel.easygoogle.R;
 
@@ -16,16 +18,18 @@ public class PubSubService extends IntentService {
 
     private static final String TAG = "PubSubService";
 
-    private GcmPubSub mGcmPubSub;
-
     public PubSubService() {
         super(TAG);
     }
 
-    @Override
-    public void onCreate() {
-        super.onCreate();
-        mGcmPubSub = GcmPubSub.getInstance(this);
+    /**
+     * Start a pass that brings GCM topic subscriptions in line with {@link TopicStore}.
+     * @param context calling Context.
+     */
+    public static void syncTopics(Context context) {
+        Intent intent = new Intent(context, PubSubService.class);
+        intent.setAction(context.getString(R.string.action_sync_topics));
+        context.startService(intent);
     }
 
     @Override
@@ -38,7 +42,8 @@ public class PubSubService extends IntentService {
 
             Log.d(TAG, "Subscribing to:" + topic);
             try {
-                mGcmPubSub.subscribe(getToken(senderId), topic, null);
+                GcmBackend.getInstance().subscribe(this, getToken(senderId), topic);
+                TopicStore.getInstance(this).setConfirmed(topic, true);
             } catch (IOException e) {
                 Log.e(TAG, "Failed to subscribe to " + topic, e);
             }
@@ -50,15 +55,99 @@ public class PubSubService extends IntentService {
 
             Log.d(TAG, "Unsubscribing from:" + topic);
             try {
-                mGcmPubSub.unsubscribe(getToken(senderId), topic);
+                GcmBackend.getInstance().unsubscribe(this, getToken(senderId), topic);
+                TopicStore.getInstance(this).setConfirmed(topic, false);
             } catch (IOException e) {
                 Log.e(TAG, "Failed to unsubscribe from " + topic, e);
             }
         }
+
+        if (getString(R.string.action_sync_topics).equals(action)) {
+            syncTopics();
+        }
+    }
+
+    /**
+     * Subscribe to desired topics that are not yet confirmed and unsubscribe from confirmed
+     * topics that are no longer desired. Topics that fail are retried later with backoff.
+     */
+    private void syncTopics() {
+        TopicStore store = TopicStore.getInstance(this);
+        if (!store.hasDesired()) {
+            return;
+        }
+
+        String senderId = store.getSenderId();
+        Set<String> desired = store.getDesired();
+        Set<String> confirmed = store.getConfirmed();
+
+        Set<String> toSubscribe = new HashSet<>(desired);
+        toSubscribe.removeAll(confirmed);
+        Set<String> toUnsubscribe = new HashSet<>(confirmed);
+        toUnsubscribe.removeAll(desired);
+
+        if (toSubscribe.isEmpty() && toUnsubscribe.isEmpty()) {
+            Log.d(TAG, "syncTopics: up to date");
+            store.setAttempts(0);
+            return;
+        }
+
+        Log.d(TAG, "syncTopics: +" + toSubscribe + " -" + toUnsubscribe);
+        boolean failed = false;
+        try {
+            String token = getToken(senderId);
+            GcmBackend backend = GcmBackend.getInstance();
+            for (String topic : toSubscribe) {
+                try {
+                    backend.subscribe(this, token, topic);
+                    confirmed.add(topic);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to subscribe to " + topic, e);
+                    failed = true;
+                }
+            }
+
+            for (String topic : toUnsubscribe) {
+                try {
+                    backend.unsubscribe(this, token, topic);
+                    confirmed.remove(topic);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to unsubscribe from " + topic, e);
+                    failed = true;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to get token", e);
+            failed = true;
+        }
+
+        // Record progress in one write, whether or not every topic succeeded
+        store.setConfirmed(confirmed);
+
+        if (failed) {
+            int attempts = store.getAttempts() + 1;
+            store.setAttempts(attempts);
+            scheduleRetry(attempts);
+        } else {
+            store.setAttempts(0);
+        }
+    }
+
+    private void scheduleRetry(int attempts) {
+        long delay = GCMUtils.getBackoffDelay(attempts);
+        Log.d(TAG, "scheduleRetry: attempt " + attempts + " in " + delay + "ms");
+
+        Intent intent = new Intent(this, PubSubService.class);
+        intent.setAction(getString(R.string.action_sync_topics));
+        PendingIntent pendingIntent =
+                PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delay,
+                pendingIntent);
     }
 
     private String getToken(String senderId) throws IOException {
-        InstanceID instanceID = InstanceID.getInstance(this);
-        return instanceID.getToken(senderId, GoogleCloudMessaging.INSTANCE_ID_SCOPE, null);
+        return TokenCache.getInstance(this).getToken(senderId);
     }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.os.Bundle;
+
+/**
+ * A downstream GCM message, as delivered to
+ * {@link EasyMessageService#onMessageReceived(ReceivedMessage)} and
+ * {@link EasyMessageService#onMessagesReceived(java.util.List)}.
+ */
+public class ReceivedMessage {
+
+    private final String mFrom;
+    private final MessageCodec mCodec;
+    private final byte[] mEncoded;
+    private final long mReceivedAt;
+    private Bundle mData;
+
+    public ReceivedMessage(String from, Bundle data) {
+        this(from, data, 0);
+    }
+
+    /**
+     * @param from the sender's ID.
+     * @param data arbitrary message data (determined by sender).
+     * @param receivedAt time the message was received, see
+     *                   {@link android.os.SystemClock#elapsedRealtime()}, or 0 if unknown.
+     */
+    ReceivedMessage(String from, Bundle data, long receivedAt) {
+        mFrom = from;
+        mCodec = null;
+        mEncoded = null;
+        mReceivedAt = receivedAt;
+        mData = data;
+    }
+
+    /**
+     * Create a message whose data is only decoded when it is read.
+     * @param from the sender's ID.
+     * @param codec the codec that produced {@code encoded}.
+     * @param encoded encoded message data.
+     */
+    ReceivedMessage(String from, MessageCodec codec, byte[] encoded) {
+        this(from, codec, encoded, 0);
+    }
+
+    /**
+     * Create a message whose data is only decoded when it is read.
+     * @param from the sender's ID.
+     * @param codec the codec that produced {@code encoded}.
+     * @param encoded encoded message data.
+     * @param receivedAt time the message was received, see
+     *                   {@link android.os.SystemClock#elapsedRealtime()}, or 0 if unknown.
+     */
+    ReceivedMessage(String from, MessageCodec codec, byte[] encoded, long receivedAt) {
+        mFrom = from;
+        mCodec = codec;
+        mEncoded = encoded;
+        mReceivedAt = receivedAt;
+    }
+
+    /**
+     * @return the sender's ID.
+     */
+    public String getFrom() {
+        return mFrom;
+    }
+
+    /**
+     * @return time the message was received, or 0 if unknown.
+     */
+    long getReceivedAt() {
+        return mReceivedAt;
+    }
+
+    /**
+     * @return arbitrary message data (determined by sender).
+     */
+    public Bundle getData() {
+        if (mData == null) {
+            mData = mCodec.decode(mEncoded);
+        }
+
+        return mData;
+    }
+
+    /**
+     * Read a single field of the message data. This avoids decoding the whole message when
+     * only a few fields are needed.
+     * @param key the field to read.
+     * @return the value of the field, or null if not present.
+     */
+    public String getString(String key) {
+        if (mData == null) {
+            return mCodec.getString(mEncoded, key);
+        }
+
+        Object value = mData.get(key);
+        return value == null ? null : String.valueOf(value);
+    }
+
+    @Override
+    public String toString() {
+        return "ReceivedMessage{from=" + mFrom + ", data=" + getData() + "}";
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Sends upstream messages over a small pool of threads. Messages that share an ordering key are
+ * sent one after another in queue order, messages with different keys are sent concurrently.
+ * Messages are pulled from a {@link Source} as sends complete, so that a slow key only holds up
+ * its own messages and never the rest of the queue. This class has no Android dependencies.
+ * @param <T> the message type.
+ */
+public class SendEngine<T extends SendEngine.Message> {
+
+    /**
+     * A message that can be sent by the engine.
+     */
+    public interface Message {
+
+        /**
+         * @return the key identifying the messages this one must be sent in order with.
+         */
+        String getOrderingKey();
+    }
+
+    /**
+     * Messages waiting to be sent, in queue order.
+     */
+    public interface Source<T> {
+
+        /**
+         * Get the next messages. Each message must only be returned once.
+         * @param limit maximum number of messages to return.
+         * @return up to {@code limit} messages, or an empty list if there are none left.
+         */
+        List<T> next(int limit);
+    }
+
+    /**
+     * Blocking transport used to deliver a single upstream message.
+     */
+    public interface Transport<T> {
+        void send(T message) throws IOException;
+    }
+
+    /**
+     * Outcome of {@link #sendAll(Source)}.
+     */
+    public static class Result<T> {
+
+        private final List<T> mSent = new ArrayList<>();
+        private final List<T> mFailed = new ArrayList<>();
+
+        /**
+         * @return messages that were accepted by the transport.
+         */
+        public List<T> getSent() {
+            return mSent;
+        }
+
+        /**
+         * @return the first message that failed for each ordering key. Later messages with the
+         * same key were not attempted.
+         */
+        public List<T> getFailed() {
+            return mFailed;
+        }
+    }
+
+    private final Transport<T> mTransport;
+    private final ExecutorService mExecutor;
+    private final int mThreads;
+    private final int mWindow;
+
+    /**
+     * @param transport the transport to send messages with.
+     * @param threads number of messages sent at once, each on its own thread.
+     * @param window maximum number of messages taken from the {@link Source} and not yet sent.
+     */
+    public SendEngine(Transport<T> transport, int threads, int window) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1");
+        }
+
+        mTransport = transport;
+        mThreads = threads;
+        mWindow = window;
+        mExecutor = threads == 1 ? null : Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Send messages until the source is empty or a send fails. After a failure, no more
+     * messages are taken from the source and messages already taken with the failed key are
+     * not attempted; sends in progress for other keys are completed. If the calling thread is
+     * interrupted this returns early, with the interrupt flag set and the messages still being
+     * sent left out of the result.
+     * @param source the messages to send.
+     * @return which messages were sent and which failed.
+     */
+    public Result<T> sendAll(Source<T> source) {
+        Result<T> result = new Result<>();
+        if (mExecutor == null) {
+            sendInOrder(source, result);
+            return result;
+        }
+
+        CompletionService<Outcome<T>> completion = new ExecutorCompletionService<>(mExecutor);
+
+        // Messages waiting for the send in progress with the same key. A key is present while
+        // one of its messages is being sent.
+        Map<String, ArrayDeque<T>> waiting = new HashMap<>();
+        int taken = 0;
+        int running = 0;
+        boolean refill = true;
+
+        while (true) {
+            if (refill && taken < mWindow) {
+                List<T> messages = source.next(mWindow - taken);
+                refill = !messages.isEmpty();
+                for (T message : messages) {
+                    taken++;
+                    ArrayDeque<T> keyMessages = waiting.get(message.getOrderingKey());
+                    if (keyMessages == null) {
+                        waiting.put(message.getOrderingKey(), new ArrayDeque<T>());
+                        submit(completion, message);
+                        running++;
+                    } else {
+                        keyMessages.add(message);
+                    }
+                }
+            }
+
+            if (running == 0) {
+                return result;
+            }
+
+            Outcome<T> outcome;
+            try {
+                outcome = completion.take().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return result;
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Send task failed", e.getCause());
+            }
+
+            running--;
+            taken--;
+            T message = outcome.mMessage;
+            ArrayDeque<T> keyMessages = waiting.get(message.getOrderingKey());
+            if (outcome.mSent) {
+                result.mSent.add(message);
+                T next = keyMessages.poll();
+                if (next != null) {
+                    // Keep the key's order, and its place in the window
+                    submit(completion, next);
+                    running++;
+                } else {
+                    waiting.remove(message.getOrderingKey());
+                }
+            } else {
+                // Stop here to preserve ordering for this key
+                result.mFailed.add(message);
+                taken -= keyMessages.size();
+                waiting.remove(message.getOrderingKey());
+                refill = false;
+            }
+        }
+    }
+
+    /**
+     * @return the number of threads used to send messages.
+     */
+    public int getThreads() {
+        return mThreads;
+    }
+
+    /**
+     * Stop the worker threads. The engine can not be used after this call.
+     */
+    public void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    private void submit(CompletionService<Outcome<T>> completion, final T message) {
+        completion.submit(new Callable<Outcome<T>>() {
+            @Override
+            public Outcome<T> call() {
+                try {
+                    mTransport.send(message);
+                    return new Outcome<>(message, true);
+                } catch (IOException e) {
+                    return new Outcome<>(message, false);
+                }
+            }
+        });
+    }
+
+    // With a single thread there is nothing to run concurrently, send on the calling thread
+    private void sendInOrder(Source<T> source, Result<T> result) {
+        List<T> messages;
+        while (!(messages = source.next(mWindow)).isEmpty()) {
+            for (T message : messages) {
+                try {
+                    mTransport.send(message);
+                    result.mSent.add(message);
+                } catch (IOException e) {
+                    result.mFailed.add(message);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class Outcome<T> {
+
+        private final T mMessage;
+        private final boolean mSent;
+
+        Outcome(T message, boolean sent) {
+            mMessage = message;
+            mSent = sent;
+        }
+    }
+}
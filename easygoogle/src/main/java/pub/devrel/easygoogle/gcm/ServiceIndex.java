@@ -0,0 +1,96 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Services grouped by the value of their {@code android:permission} attribute, built in a single
+ * pass so that each lookup is a map access. This class has no Android dependencies, so it can
+ * be benchmarked on a plain JVM; {@link ServiceRegistry} supplies the services from the
+ * manifest.
+ * @param <T> identifies a service, for example a {@code ComponentName}.
+ */
+class ServiceIndex<T> {
+
+    // Immutable map of permission -> immutable list of services
+    private final Map<String, List<T>> mByPermission;
+
+    /**
+     * Group services by permission.
+     * @param permissions the permission of each service, services with a null permission are
+     *                    left out.
+     * @param services the services, in the same order as {@code permissions}.
+     */
+    ServiceIndex(List<String> permissions, List<T> services) {
+        Map<String, List<T>> grouped = new HashMap<>();
+        for (int i = 0; i < services.size(); i++) {
+            String permission = permissions.get(i);
+            if (permission == null) {
+                continue;
+            }
+
+            List<T> group = grouped.get(permission);
+            if (group == null) {
+                group = new ArrayList<>();
+                grouped.put(permission, group);
+            }
+            group.add(services.get(i));
+        }
+
+        Map<String, List<T>> byPermission = new HashMap<>();
+        for (Map.Entry<String, List<T>> entry : grouped.entrySet()) {
+            byPermission.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+        }
+        mByPermission = Collections.unmodifiableMap(byPermission);
+    }
+
+    /**
+     * @param permission the permission the service should have declared.
+     * @return an unmodifiable list of services with the permission, never null.
+     */
+    List<T> get(String permission) {
+        List<T> services = mByPermission.get(permission);
+        if (services == null) {
+            return Collections.emptyList();
+        }
+
+        return services;
+    }
+
+    /**
+     * Find the services with a given permission without building an index, for one-off
+     * lookups.
+     * @param permissions the permission of each service.
+     * @param services the services, in the same order as {@code permissions}.
+     * @param permission the permission the service should have declared.
+     * @return the matching services, in order.
+     */
+    static <T> List<T> filter(List<String> permissions, List<T> services, String permission) {
+        List<T> results = new ArrayList<>();
+        for (int i = 0; i < services.size(); i++) {
+            if (permission.equals(permissions.get(i))) {
+                results.add(services.get(i));
+            }
+        }
+
+        return results;
+    }
+}
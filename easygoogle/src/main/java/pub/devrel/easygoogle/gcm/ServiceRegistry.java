@@ -0,0 +1,109 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ServiceInfo;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pub.devrel.easygoogle.EasyGoogleMetrics;
+
+/**
+ * Process-wide cache of the services declared in the application's manifest, grouped by
+ * the value of their {@code android:permission} attribute. The manifest can only change when
+ * the package is replaced, so the package is scanned once per process and the result is kept
+ * as an immutable {@link ServiceIndex} until {@link #invalidate()} is called by
+ * {@link PackageReplacedReceiver}.
+ */
+public class ServiceRegistry {
+
+    private static final String TAG = "ServiceRegistry";
+
+    private static ServiceRegistry sInstance;
+
+    private final Context mContext;
+
+    // Immutable, replaced wholesale
+    private volatile ServiceIndex<ComponentName> mSnapshot;
+
+    public static synchronized ServiceRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ServiceRegistry(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private ServiceRegistry(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Get all services in the AndroidManifest with a given permission. The first call in a
+     * process scans the package; subsequent calls are served from memory.
+     * @param permission the permission the service should have declared in the
+     *                   {@code android:permission} field.
+     * @return an unmodifiable list of {@code ComponentName} objects, never null.
+     */
+    public List<ComponentName> getServices(String permission) {
+        return getSnapshot().get(permission);
+    }
+
+    /**
+     * Drop the cached snapshot so that the next lookup re-scans the package.
+     */
+    public synchronized void invalidate() {
+        Log.d(TAG, "invalidate");
+        mSnapshot = null;
+    }
+
+    private ServiceIndex<ComponentName> getSnapshot() {
+        ServiceIndex<ComponentName> snapshot = mSnapshot;
+        if (snapshot == null) {
+            synchronized (this) {
+                snapshot = mSnapshot;
+                if (snapshot == null) {
+                    snapshot = buildSnapshot();
+                    mSnapshot = snapshot;
+                }
+            }
+        }
+
+        return snapshot;
+    }
+
+    private ServiceIndex<ComponentName> buildSnapshot() {
+        String packageName = mContext.getPackageName();
+        Log.d(TAG, "Building snapshot for package: " + packageName);
+        EasyGoogleMetrics.increment(EasyGoogleMetrics.PACKAGE_SCANS);
+
+        List<String> permissions = new ArrayList<>();
+        List<ComponentName> components = new ArrayList<>();
+        ServiceInfo[] services = GCMUtils.getServices(mContext);
+        if (services != null) {
+            for (ServiceInfo service : services) {
+                permissions.add(service.permission);
+                components.add(new ComponentName(packageName, service.name));
+            }
+        }
+
+        return new ServiceIndex<>(permissions, components);
+    }
+}
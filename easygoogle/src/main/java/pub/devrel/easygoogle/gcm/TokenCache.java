@@ -0,0 +1,128 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.android.gms.gcm.GoogleCloudMessaging;
+import com.google.android.gms.iid.InstanceID;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import pub.devrel.easygoogle.EasyGoogleMetrics;
+
+/**
+ * In-memory and persisted cache of InstanceID tokens, keyed by sender ID and scope. Tokens only
+ * change when InstanceID asks for a refresh, so {@link IDListenerService#onTokenRefresh()} is the
+ * only thing that invalidates this cache.
+ */
+public class TokenCache {
+
+    private static final String TAG = "TokenCache";
+
+    private static final String PREFS_NAME = "easygoogle_tokens";
+
+    private static TokenCache sInstance;
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    private final ConcurrentHashMap<String, String> mTokens = new ConcurrentHashMap<>();
+
+    // Incremented by invalidate(), guarded by this
+    private int mGeneration;
+
+    public static synchronized TokenCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TokenCache(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private TokenCache(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Get the GCM token for a sender ID, see {@link #getToken(String, String)}.
+     * @param senderId GCM sender Id.
+     * @return the token.
+     * @throws IOException if the token had to be fetched and the fetch failed.
+     */
+    public String getToken(String senderId) throws IOException {
+        return getToken(senderId, GoogleCloudMessaging.INSTANCE_ID_SCOPE);
+    }
+
+    /**
+     * Get a token from memory, then from disk, and only then from {@link InstanceID}. Must not
+     * be called on the main thread since it may block on the network.
+     * @param senderId the authorized entity, usually the GCM sender Id.
+     * @param scope the token scope.
+     * @return the token.
+     * @throws IOException if the token had to be fetched and the fetch failed.
+     */
+    public String getToken(String senderId, String scope) throws IOException {
+        String key = senderId + "|" + scope;
+
+        String token = mTokens.get(key);
+        if (token != null) {
+            return token;
+        }
+
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+
+        boolean fetched = false;
+        token = mPrefs.getString(key, null);
+        if (token == null) {
+            Log.d(TAG, "getToken: fetching token for " + key);
+            token = GcmBackend.getInstance().getToken(mContext, senderId, scope);
+            EasyGoogleMetrics.increment(EasyGoogleMetrics.INSTANCE_ID_TOKEN_FETCHES);
+            fetched = true;
+        }
+
+        synchronized (this) {
+            // A token read or fetched before invalidate() must not be cached after it
+            if (generation != mGeneration) {
+                Log.d(TAG, "getToken: invalidated during fetch, not caching " + key);
+                return token;
+            }
+
+            if (fetched) {
+                mPrefs.edit().putString(key, token).apply();
+            }
+            mTokens.put(key, token);
+        }
+        return token;
+    }
+
+    /**
+     * Drop all cached tokens, the next call to {@link #getToken(String, String)} will fetch a
+     * fresh token from InstanceID.
+     */
+    public synchronized void invalidate() {
+        Log.d(TAG, "invalidate");
+        mGeneration++;
+        mTokens.clear();
+        mPrefs.edit().clear().commit();
+    }
+}
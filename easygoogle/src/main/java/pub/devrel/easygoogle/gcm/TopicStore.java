@@ -0,0 +1,129 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Persisted record of GCM topic subscriptions: the set of topics the application wants
+ * (see {@link Messaging#setTopics(Set)}) and the set GCM has confirmed. {@link PubSubService}
+ * reconciles the two.
+ */
+public class TopicStore {
+
+    private static final String PREFS_NAME = "easygoogle_topics";
+    private static final String PREF_SENDER_ID = "sender_id";
+    private static final String PREF_DESIRED = "desired";
+    private static final String PREF_CONFIRMED = "confirmed";
+    private static final String PREF_ATTEMPTS = "attempts";
+
+    private static TopicStore sInstance;
+
+    private final SharedPreferences mPrefs;
+
+    public static synchronized TopicStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TopicStore(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private TopicStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return true if {@link #setDesired(String, Set)} has ever been called.
+     */
+    public boolean hasDesired() {
+        return mPrefs.contains(PREF_DESIRED);
+    }
+
+    public synchronized void setDesired(String senderId, Set<String> topics) {
+        mPrefs.edit()
+                .putString(PREF_SENDER_ID, senderId)
+                .putStringSet(PREF_DESIRED, new HashSet<>(topics))
+                .apply();
+    }
+
+    public String getSenderId() {
+        return mPrefs.getString(PREF_SENDER_ID, null);
+    }
+
+    public Set<String> getDesired() {
+        return copy(mPrefs.getStringSet(PREF_DESIRED, null));
+    }
+
+    public Set<String> getConfirmed() {
+        return copy(mPrefs.getStringSet(PREF_CONFIRMED, null));
+    }
+
+    /**
+     * Replace the set of topics confirmed by GCM.
+     * @param topics the confirmed topics.
+     */
+    public synchronized void setConfirmed(Set<String> topics) {
+        mPrefs.edit().putStringSet(PREF_CONFIRMED, new HashSet<>(topics)).commit();
+    }
+
+    /**
+     * Record that a single topic was subscribed or unsubscribed outside of a full reconcile.
+     * @param topic the topic.
+     * @param subscribed true if the topic is now subscribed, false otherwise.
+     */
+    public synchronized void setConfirmed(String topic, boolean subscribed) {
+        Set<String> confirmed = getConfirmed();
+        if (subscribed) {
+            confirmed.add(topic);
+        } else {
+            confirmed.remove(topic);
+        }
+        setConfirmed(confirmed);
+    }
+
+    /**
+     * Forget all confirmed subscriptions, for example because the token they were made with
+     * is no longer valid.
+     */
+    public synchronized void clearConfirmed() {
+        mPrefs.edit().remove(PREF_CONFIRMED).commit();
+    }
+
+    /**
+     * @return the number of consecutive failed reconcile attempts.
+     */
+    public int getAttempts() {
+        return mPrefs.getInt(PREF_ATTEMPTS, 0);
+    }
+
+    public void setAttempts(int attempts) {
+        mPrefs.edit().putInt(PREF_ATTEMPTS, attempts).apply();
+    }
+
+    private static Set<String> copy(Set<String> topics) {
+        if (topics == null) {
+            return new HashSet<>();
+        }
+
+        // Sets returned by SharedPreferences must not be modified
+        return new HashSet<>(topics);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.support.v4.app.FragmentActivity;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ActivityController;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pub.devrel.easygoogle.gac.AppInvites;
+import pub.devrel.easygoogle.gac.GacFragment;
+import pub.devrel.easygoogle.gac.GoogleApiClientManager;
+import pub.devrel.easygoogle.gac.SignIn;
+import pub.devrel.easygoogle.gac.SmartLock;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Counts the GoogleApiClient instances built by {@link Google.Builder} against recorded
+ * baselines. Clients come from a {@link GacFragment.ClientFactory} that returns mocks, so
+ * nothing connects to Play services. A change in any of these numbers is a performance
+ * regression (or improvement) and the baseline should only be updated deliberately.
+ *
+ * Only work is counted here, timings under Robolectric say nothing about a device. Timing
+ * baselines live in the benchmarks module and the instrumented benchmarks.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class GoogleBuilderTest {
+
+    private final List<ActivityController<FragmentActivity>> mControllers = new ArrayList<>();
+    private final List<GoogleApiClient> mClients = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        EasyGoogleMetrics.setSink(null);
+        GoogleApiClientManager.getInstance().setLingerMs(0);
+        GacFragment.setClientFactory(new GacFragment.ClientFactory() {
+            @Override
+            public GoogleApiClient create(GoogleApiClient.Builder builder) {
+                GoogleApiClient client = mock(GoogleApiClient.class);
+                mClients.add(client);
+                return client;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        // Release every lease, so that no shared client outlives the test
+        for (ActivityController<FragmentActivity> controller : mControllers) {
+            controller.pause().stop().destroy();
+        }
+
+        GacFragment.setClientFactory(null);
+        EasyGoogleMetrics.setSink(null);
+    }
+
+    @Test
+    public void build_buildsOneClientForAllModules() {
+        startActivity(true);
+
+        assertEquals(1, getCounter(EasyGoogleMetrics.GAC_CLIENT_BUILDS));
+    }
+
+    @Test
+    public void rotation_keepsClient() {
+        ActivityController<FragmentActivity> controller = createActivity();
+        build(controller.get(), true);
+        controller.start().resume();
+
+        // The re-created Activity builds again against the retained fragment
+        recreate(controller);
+
+        assertEquals(1, getCounter(EasyGoogleMetrics.GAC_CLIENT_BUILDS));
+        assertEquals(1, mClients.size());
+        verify(mClients.get(0), times(1)).connect();
+        verify(mClients.get(0), never()).disconnect();
+    }
+
+    @Test
+    public void secondActivity_sharesClient() {
+        startActivity(true);
+        startActivity(true);
+
+        assertEquals(1, getCounter(EasyGoogleMetrics.GAC_CLIENT_BUILDS));
+    }
+
+    @Test
+    public void secondActivity_withOtherModules_buildsOwnClient() {
+        startActivity(true);
+        startActivity(false);
+
+        assertEquals(2, getCounter(EasyGoogleMetrics.GAC_CLIENT_BUILDS));
+    }
+
+    @Test
+    public void lazyConnect_buildsOnPrewarm() {
+        ActivityController<FragmentActivity> controller = createActivity();
+        Google google = newBuilder(controller.get(), true).setLazyConnect(true).build();
+        executePendingTransactions(controller.get());
+        controller.start().resume();
+
+        assertEquals(0, getCounter(EasyGoogleMetrics.GAC_CLIENT_BUILDS));
+
+        google.prewarm();
+        assertEquals(1, getCounter(EasyGoogleMetrics.GAC_CLIENT_BUILDS));
+    }
+
+    private FragmentActivity startActivity(boolean allModules) {
+        ActivityController<FragmentActivity> controller = createActivity();
+        build(controller.get(), allModules);
+        controller.start().resume();
+        return controller.get();
+    }
+
+    /**
+     * Put an Activity through a configuration change: stop and destroy it as changing
+     * configurations, then create a new instance that receives its retained fragments and
+     * saved state, as the framework does on rotation.
+     */
+    private ActivityController<FragmentActivity> recreate(
+            ActivityController<FragmentActivity> controller) {
+        FragmentActivity activity = controller.get();
+        ReflectionHelpers.setField(Activity.class, activity, "mChangingConfigurations", true);
+
+        Bundle state = new Bundle();
+        controller.pause().saveInstanceState(state).stop();
+        Object retained = activity.onRetainNonConfigurationInstance();
+        controller.destroy();
+        mControllers.remove(controller);
+
+        ActivityController<FragmentActivity> recreated =
+                Robolectric.buildActivity(FragmentActivity.class).attach();
+        Shadows.shadowOf(recreated.get()).setLastNonConfigurationInstance(retained);
+        recreated.create(state);
+        mControllers.add(recreated);
+
+        build(recreated.get(), true);
+        recreated.start().restoreInstanceState(state).resume();
+        return recreated;
+    }
+
+    private ActivityController<FragmentActivity> createActivity() {
+        ActivityController<FragmentActivity> controller =
+                Robolectric.buildActivity(FragmentActivity.class).create();
+        mControllers.add(controller);
+        return controller;
+    }
+
+    private Google build(FragmentActivity activity, boolean allModules) {
+        Google google = newBuilder(activity, allModules).build();
+        executePendingTransactions(activity);
+        return google;
+    }
+
+    private Google.Builder newBuilder(FragmentActivity activity, boolean allModules) {
+        Google.Builder builder = new Google.Builder(activity)
+                .enableSignIn(mock(SignIn.SignInListener.class));
+        if (allModules) {
+            builder.enableAppInvites(mock(AppInvites.AppInviteListener.class))
+                    .enableSmartLock(mock(SmartLock.SmartLockListener.class));
+        }
+
+        return builder;
+    }
+
+    private static void executePendingTransactions(FragmentActivity activity) {
+        activity.getSupportFragmentManager().executePendingTransactions();
+    }
+
+    private static long getCounter(String name) {
+        return ((EasyGoogleMetrics.InMemorySink) EasyGoogleMetrics.getSink()).getCounter(name);
+    }
+}
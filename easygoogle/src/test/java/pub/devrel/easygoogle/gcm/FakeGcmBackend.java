@@ -0,0 +1,75 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Offline {@link GcmBackend} for tests, records every call instead of reaching Play services.
+ */
+public class FakeGcmBackend extends GcmBackend {
+
+    private final List<String> mSentMessageIds = new ArrayList<>();
+    private final List<String> mSubscribedTopics = new ArrayList<>();
+    private final List<String> mUnsubscribedTopics = new ArrayList<>();
+    private int mTokenFetches;
+
+    @Override
+    public synchronized void send(Context context, String to, String messageId, Bundle data)
+            throws IOException {
+        mSentMessageIds.add(messageId);
+    }
+
+    @Override
+    public synchronized String getToken(Context context, String senderId, String scope)
+            throws IOException {
+        mTokenFetches++;
+        return "token-" + senderId + "-" + mTokenFetches;
+    }
+
+    @Override
+    public synchronized void subscribe(Context context, String token, String topic)
+            throws IOException {
+        mSubscribedTopics.add(topic);
+    }
+
+    @Override
+    public synchronized void unsubscribe(Context context, String token, String topic)
+            throws IOException {
+        mUnsubscribedTopics.add(topic);
+    }
+
+    public synchronized List<String> getSentMessageIds() {
+        return new ArrayList<>(mSentMessageIds);
+    }
+
+    public synchronized List<String> getSubscribedTopics() {
+        return new ArrayList<>(mSubscribedTopics);
+    }
+
+    public synchronized List<String> getUnsubscribedTopics() {
+        return new ArrayList<>(mUnsubscribedTopics);
+    }
+
+    public synchronized int getTokenFetches() {
+        return mTokenFetches;
+    }
+}
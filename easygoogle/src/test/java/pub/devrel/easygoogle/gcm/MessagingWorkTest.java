@@ -0,0 +1,225 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.ServiceInfo;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import pub.devrel.easygoogle.BuildConfig;
+import pub.devrel.easygoogle.EasyGoogleMetrics;
+import pub.devrel.easygoogle.R;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Counts the expensive calls made by the GCM services against recorded baselines, using a
+ * {@link FakeGcmBackend} so that nothing reaches Play services. A change in any of these
+ * numbers is a performance regression (or improvement) and the baseline should only be
+ * updated deliberately.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class MessagingWorkTest {
+
+    private static final String SENDER_ID = "1234567890";
+    private static final String GCM_PERMISSION = "pub.devrel.easygoogle.test.GCM";
+
+    // Services in the fake manifest with the GCM permission, out of three
+    private static final int GCM_SERVICES = 2;
+
+    // The inbound duplicate filter is process-wide, so message IDs are never reused
+    private static int sMessageNumber;
+
+    private Context mContext;
+    private FakeGcmBackend mBackend;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mBackend = new FakeGcmBackend();
+        GcmBackend.setInstance(mBackend);
+        EasyGoogleMetrics.setSink(null);
+
+        installServices(mContext, GCM_PERMISSION, GCM_SERVICES);
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(GCMUtils.PREF_KEY_GCM_PERMISSION, GCM_PERMISSION)
+                .commit();
+
+        // The caches are process-wide, start every test cold
+        TokenCache.getInstance(mContext).invalidate();
+        ServiceRegistry.getInstance(mContext).invalidate();
+    }
+
+    @After
+    public void tearDown() {
+        GcmBackend.setInstance(null);
+        EasyGoogleMetrics.setSink(null);
+    }
+
+    @Test
+    public void register_fetchesTokenOnce() {
+        IDRegisterService service = Robolectric.buildService(IDRegisterService.class)
+                .create().get();
+
+        // Every Activity start registers again
+        for (int i = 0; i < 5; i++) {
+            service.onHandleIntent(newRegisterIntent());
+        }
+
+        assertEquals(1, getCounter(EasyGoogleMetrics.INSTANCE_ID_TOKEN_FETCHES));
+        assertEquals(1, mBackend.getTokenFetches());
+        assertEquals(1, getCounter(EasyGoogleMetrics.PACKAGE_SCANS));
+    }
+
+    @Test
+    public void tokenRotation_fetchesOneNewToken() {
+        IDRegisterService service = Robolectric.buildService(IDRegisterService.class)
+                .create().get();
+        service.onHandleIntent(newRegisterIntent());
+
+        Robolectric.buildService(IDListenerService.class).create().get().onTokenRefresh();
+        service.onHandleIntent(newRegisterIntent());
+        service.onHandleIntent(newRegisterIntent());
+
+        assertEquals(2, getCounter(EasyGoogleMetrics.INSTANCE_ID_TOKEN_FETCHES));
+        assertEquals(2, mBackend.getTokenFetches());
+    }
+
+    @Test
+    public void fanOut_startsEachServiceOncePerMessage() {
+        MessageListenerService service = Robolectric.buildService(MessageListenerService.class)
+                .create().get();
+
+        service.onMessageReceived(SENDER_ID, newMessage());
+
+        assertEquals(GCM_SERVICES, getCounter(EasyGoogleMetrics.GCM_FANOUT));
+        assertEquals(1, getCounter(EasyGoogleMetrics.PACKAGE_SCANS));
+        assertEquals(0, getCounter(EasyGoogleMetrics.INSTANCE_ID_TOKEN_FETCHES));
+        assertEquals(0, mBackend.getSentMessageIds().size());
+    }
+
+    @Test
+    public void send_sendsEachMessageOnce() {
+        // The queue is process-wide, open it against this test's application
+        ReflectionHelpers.setStaticField(OutboundQueue.class, "sInstance", null);
+        MessageSenderService service = Robolectric.buildService(MessageSenderService.class)
+                .create().get();
+
+        // Every drain after the first finds the earlier messages waiting for acknowledgement
+        for (int i = 0; i < 3; i++) {
+            service.onHandleIntent(newSendIntent());
+        }
+
+        List<String> sent = mBackend.getSentMessageIds();
+        assertEquals(3, sent.size());
+        assertEquals(3, new HashSet<>(sent).size());
+        assertEquals(0, getCounter(EasyGoogleMetrics.GCM_SEND_FAILURES));
+        assertEquals(0, getCounter(EasyGoogleMetrics.INSTANCE_ID_TOKEN_FETCHES));
+    }
+
+    @Test
+    public void pubSub_fetchesTokenOnceForAllTopics() {
+        PubSubService service = Robolectric.buildService(PubSubService.class).create().get();
+
+        service.onHandleIntent(newTopicIntent(R.string.action_subscribe, "a"));
+        service.onHandleIntent(newTopicIntent(R.string.action_subscribe, "b"));
+        service.onHandleIntent(newTopicIntent(R.string.action_subscribe, "c"));
+        service.onHandleIntent(newTopicIntent(R.string.action_unsubscribe, "b"));
+
+        assertEquals(Arrays.asList("a", "b", "c"), mBackend.getSubscribedTopics());
+        assertEquals(Arrays.asList("b"), mBackend.getUnsubscribedTopics());
+        assertEquals(1, getCounter(EasyGoogleMetrics.INSTANCE_ID_TOKEN_FETCHES));
+        assertEquals(1, mBackend.getTokenFetches());
+    }
+
+    /**
+     * Replace the package's declared services with {@code gcmServices} services holding
+     * {@code permission}, and one service without it.
+     */
+    static void installServices(Context context, String permission, int gcmServices) {
+        ApplicationInfo applicationInfo = new ApplicationInfo();
+        applicationInfo.packageName = context.getPackageName();
+
+        ServiceInfo[] services = new ServiceInfo[gcmServices + 1];
+        for (int i = 0; i < services.length; i++) {
+            services[i] = new ServiceInfo();
+            services[i].packageName = context.getPackageName();
+            services[i].name = context.getPackageName() + ".TestService" + i;
+            services[i].permission = i < gcmServices ? permission : null;
+            services[i].applicationInfo = applicationInfo;
+        }
+
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = context.getPackageName();
+        packageInfo.applicationInfo = applicationInfo;
+        packageInfo.services = services;
+        RuntimeEnvironment.getRobolectricPackageManager().addPackage(packageInfo);
+    }
+
+    static Bundle newMessage() {
+        int messageNumber = ++sMessageNumber;
+        Bundle data = new Bundle();
+        data.putString(DuplicateFilter.KEY_MESSAGE_ID, "0:" + messageNumber);
+        data.putString("message", "Message " + messageNumber);
+        return data;
+    }
+
+    static long getCounter(String name) {
+        return ((EasyGoogleMetrics.InMemorySink) EasyGoogleMetrics.getSink()).getCounter(name);
+    }
+
+    private Intent newSendIntent() {
+        Intent intent = new Intent(mContext, MessageSenderService.class);
+        intent.putExtra(MessagingFragment.SENDER_ID_ARG, SENDER_ID);
+        intent.putExtra(MessagingFragment.MESSAGE_PAYLOAD_ARG,
+                MessagingOptions.load(mContext).getCodec().encode(newMessage()));
+        return intent;
+    }
+
+    private Intent newTopicIntent(int action, String topic) {
+        Intent intent = new Intent(mContext, PubSubService.class);
+        intent.setAction(mContext.getString(action));
+        intent.putExtra(MessagingFragment.SENDER_ID_ARG, SENDER_ID);
+        intent.putExtra(MessagingFragment.TOPIC_ARG, topic);
+        return intent;
+    }
+
+    private Intent newRegisterIntent() {
+        Intent intent = new Intent(mContext, IDRegisterService.class);
+        intent.putExtra(MessagingFragment.SENDER_ID_ARG, SENDER_ID);
+        intent.putExtra(MessagingFragment.GCM_PERMISSION_ARG, GCM_PERMISSION);
+        return intent;
+    }
+}
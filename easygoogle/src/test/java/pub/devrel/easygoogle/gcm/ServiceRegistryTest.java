@@ -0,0 +1,109 @@
+/*
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pub.devrel.easygoogle.gcm;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.preference.PreferenceManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import pub.devrel.easygoogle.BuildConfig;
+import pub.devrel.easygoogle.EasyGoogleMetrics;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link ServiceRegistry} scans the package at most once per process, however many
+ * messages are delivered.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ServiceRegistryTest {
+
+    private static final String SENDER_ID = "1234567890";
+    private static final String GCM_PERMISSION = "pub.devrel.easygoogle.test.GCM";
+    private static final int GCM_SERVICES = 2;
+    private static final int MESSAGES = 50;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        GcmBackend.setInstance(new FakeGcmBackend());
+        EasyGoogleMetrics.setSink(null);
+
+        MessagingWorkTest.installServices(mContext, GCM_PERMISSION, GCM_SERVICES);
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(GCMUtils.PREF_KEY_GCM_PERMISSION, GCM_PERMISSION)
+                .commit();
+        ServiceRegistry.getInstance(mContext).invalidate();
+    }
+
+    @After
+    public void tearDown() {
+        GcmBackend.setInstance(null);
+        EasyGoogleMetrics.setSink(null);
+    }
+
+    @Test
+    public void manyMessages_scanPackageOnce() {
+        MessageListenerService service = Robolectric.buildService(MessageListenerService.class)
+                .create().get();
+        for (int i = 0; i < MESSAGES; i++) {
+            service.onMessageReceived(SENDER_ID, MessagingWorkTest.newMessage());
+        }
+
+        assertEquals(1, MessagingWorkTest.getCounter(EasyGoogleMetrics.PACKAGE_SCANS));
+        assertEquals(MESSAGES * GCM_SERVICES,
+                MessagingWorkTest.getCounter(EasyGoogleMetrics.GCM_FANOUT));
+    }
+
+    @Test
+    public void getServices_returnsOnlyServicesWithPermission() {
+        List<ComponentName> services = ServiceRegistry.getInstance(mContext)
+                .getServices(GCM_PERMISSION);
+
+        assertEquals(GCM_SERVICES, services.size());
+        assertEquals(0, ServiceRegistry.getInstance(mContext).getServices("other").size());
+        assertEquals(1, MessagingWorkTest.getCounter(EasyGoogleMetrics.PACKAGE_SCANS));
+    }
+
+    @Test
+    public void packageReplaced_rescansOnce() {
+        ServiceRegistry registry = ServiceRegistry.getInstance(mContext);
+        registry.getServices(GCM_PERMISSION);
+
+        new PackageReplacedReceiver().onReceive(mContext,
+                new Intent(Intent.ACTION_MY_PACKAGE_REPLACED));
+        for (int i = 0; i < MESSAGES; i++) {
+            registry.getServices(GCM_PERMISSION);
+        }
+
+        assertEquals(2, MessagingWorkTest.getCounter(EasyGoogleMetrics.PACKAGE_SCANS));
+    }
+}